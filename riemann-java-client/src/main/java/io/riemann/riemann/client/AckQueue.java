@@ -0,0 +1,211 @@
+package io.riemann.riemann.client;
+
+import io.riemann.riemann.Proto.Msg;
+import java.io.IOException;
+
+// A FIFO queue tracking the outstanding writes on a single TCP connection.
+// Riemann answers in the order messages were written, so each response
+// fulfills the oldest promise in the queue. Fire-and-forget writes occupy a
+// slot with a null promise. Each slot also records when it was written, for
+// latency accounting, and optionally a deadline.
+//
+// Every entry gets a sequence number, so a timer can refer to it without
+// holding on to it. An entry which misses its deadline is expired in place:
+// its promise fails, but it keeps its slot so later responses still line up.
+//
+// Not thread-safe: every call must come from the channel's event loop, which
+// is where writes and reads run anyway. Backed by a growable array ring, so
+// there are no locks and no per-entry allocations. Calling close() fails
+// every outstanding promise and prevents future writes. Open() allows writes
+// to be enqueued again.
+public class AckQueue {
+  public static final int DEFAULT_CAPACITY = 64;
+  // Deadline value for entries which never time out.
+  public static final long NO_DEADLINE = 0;
+
+  private Promise<Msg>[] promises;
+  private long[] sentAt;
+  private long[] deadlines;
+  private boolean[] expired;
+  private int mask;
+  private int head = 0;
+  private int size = 0;
+  // Sequence number of the entry at head.
+  private long headSeq = 0;
+  private boolean isOpen = true;
+
+  public AckQueue() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public AckQueue(final int initialCapacity) {
+    int capacity = 1;
+    while (capacity < initialCapacity) {
+      capacity <<= 1;
+    }
+    this.promises = newArray(capacity);
+    this.sentAt = new long[capacity];
+    this.deadlines = new long[capacity];
+    this.expired = new boolean[capacity];
+    this.mask = capacity - 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Promise<Msg>[] newArray(final int capacity) {
+    return (Promise<Msg>[]) new Promise[capacity];
+  }
+
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void open() {
+    isOpen = true;
+  }
+
+  // Deliver exceptions to all outstanding promises. Returns the number of
+  // entries cleared.
+  public int close(final Throwable t) {
+    isOpen = false;
+
+    final IOException ex = new IOException("channel closed", t);
+    final int cleared = size;
+    while (0 < size) {
+      final Promise<Msg> promise = removeHead();
+      if (promise != null) {
+        promise.deliver(ex);
+      }
+    }
+    head = 0;
+    return cleared;
+  }
+
+  public boolean put(final Promise<Msg> p) {
+    return put(p, System.nanoTime(), NO_DEADLINE);
+  }
+
+  public boolean put(final Promise<Msg> p, final long time) {
+    return put(p, time, NO_DEADLINE);
+  }
+
+  // Enqueues a promise (or null, for a fire-and-forget write) sent at the
+  // given System.nanoTime(), with a System.nanoTime() deadline or
+  // NO_DEADLINE. The entry's sequence number is nextSeq() as of the call.
+  // Returns false, failing the promise, if the queue is closed.
+  public boolean put(final Promise<Msg> p, final long time, final long deadline) {
+    if (! isOpen) {
+      if (p != null) {
+        p.deliver(new IOException("Channel closed."));
+      }
+      return false;
+    }
+
+    if (size == promises.length) {
+      grow();
+    }
+    final int i = (head + size) & mask;
+    promises[i] = p;
+    sentAt[i] = time;
+    deadlines[i] = deadline;
+    expired[i] = false;
+    size++;
+    return true;
+  }
+
+  // The sequence number the next put will be assigned.
+  public long nextSeq() {
+    return headSeq + size;
+  }
+
+  // Is the entry with this sequence number still awaiting a response?
+  public boolean isOutstanding(final long seq) {
+    return headSeq <= seq && seq < headSeq + size;
+  }
+
+  private int index(final long seq) {
+    return (int) ((head + (seq - headSeq)) & mask);
+  }
+
+  // The deadline of an outstanding entry.
+  public long deadline(final long seq) {
+    return deadlines[index(seq)];
+  }
+
+  // Fails an outstanding entry in place. Returns false if it had already
+  // expired.
+  public boolean expire(final long seq, final IOException e) {
+    final int i = index(seq);
+    if (expired[i]) {
+      return false;
+    }
+    expired[i] = true;
+    final Promise<Msg> promise = promises[i];
+    promises[i] = null;
+    if (promise != null) {
+      promise.deliver(e);
+    }
+    return true;
+  }
+
+  // When the oldest entry was written. Only meaningful if not empty.
+  public long peekSentAt() {
+    return sentAt[head];
+  }
+
+  // Whether the oldest entry has expired. Only meaningful if not empty.
+  public boolean peekExpired() {
+    return expired[head];
+  }
+
+  // Removes and returns the oldest promise, or null if none are outstanding,
+  // the oldest write was fire-and-forget, or it has expired.
+  public Promise<Msg> take() {
+    if (size == 0) {
+      return null;
+    }
+    return removeHead();
+  }
+
+  private Promise<Msg> removeHead() {
+    final Promise<Msg> p = promises[head];
+    promises[head] = null;
+    head = (head + 1) & mask;
+    headSeq++;
+    size--;
+    return p;
+  }
+
+  // Doubles the ring, unwrapping entries so the oldest sits at index 0.
+  private void grow() {
+    final int capacity = promises.length << 1;
+    final int firstRun = Math.min(size, promises.length - head);
+
+    final Promise<Msg>[] biggerPromises = newArray(capacity);
+    System.arraycopy(promises, head, biggerPromises, 0, firstRun);
+    System.arraycopy(promises, 0, biggerPromises, firstRun, size - firstRun);
+    final long[] biggerSentAt = new long[capacity];
+    System.arraycopy(sentAt, head, biggerSentAt, 0, firstRun);
+    System.arraycopy(sentAt, 0, biggerSentAt, firstRun, size - firstRun);
+    final long[] biggerDeadlines = new long[capacity];
+    System.arraycopy(deadlines, head, biggerDeadlines, 0, firstRun);
+    System.arraycopy(deadlines, 0, biggerDeadlines, firstRun, size - firstRun);
+    final boolean[] biggerExpired = new boolean[capacity];
+    System.arraycopy(expired, head, biggerExpired, 0, firstRun);
+    System.arraycopy(expired, 0, biggerExpired, firstRun, size - firstRun);
+
+    promises = biggerPromises;
+    sentAt = biggerSentAt;
+    deadlines = biggerDeadlines;
+    expired = biggerExpired;
+    mask = capacity - 1;
+    head = 0;
+  }
+}
@@ -0,0 +1,54 @@
+package io.riemann.riemann.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Aggregate outcomes of the writes on a TCP transport. Fire-and-forget
+// writes have no promise to report through, so this is the only place their
+// results show up; promised writes are counted here too.
+public class AckStats {
+  // Responses received from the server.
+  public final LongAdder acked = new LongAdder();
+  // Responses which reported an error (ok = false).
+  public final LongAdder errors = new LongAdder();
+  // Writes lost to a failed write or a closed channel before any response.
+  public final LongAdder failed = new LongAdder();
+  // Writes which were not acknowledged before their deadline.
+  public final LongAdder timeouts = new LongAdder();
+  // Fire-and-forget sends refused before they were written.
+  public final LongAdder rejected = new LongAdder();
+  // Heartbeats written to idle connections, and those which went unanswered
+  // and had their connection recycled.
+  public final LongAdder heartbeats = new LongAdder();
+  public final LongAdder heartbeatFailures = new LongAdder();
+  // Sum of nanoseconds between writing a message and receiving its response.
+  public final LongAdder latencyNanos = new LongAdder();
+
+  public void recordAck(final long latency, final boolean error) {
+    acked.increment();
+    latencyNanos.add(latency);
+    if (error) {
+      errors.increment();
+    }
+  }
+
+  // Mean write-to-response latency, in milliseconds.
+  public double meanLatencyMillis() {
+    final long n = acked.sum();
+    if (n == 0) {
+      return 0;
+    }
+    return latencyNanos.sum() / (n * 1e6);
+  }
+
+  @Override
+  public String toString() {
+    return "AckStats{acked=" + acked.sum()
+      + ", errors=" + errors.sum()
+      + ", failed=" + failed.sum()
+      + ", timeouts=" + timeouts.sum()
+      + ", rejected=" + rejected.sum()
+      + ", heartbeats=" + heartbeats.sum()
+      + ", heartbeatFailures=" + heartbeatFailures.sum()
+      + ", meanLatencyMillis=" + meanLatencyMillis() + "}";
+  }
+}
@@ -0,0 +1,22 @@
+package io.riemann.riemann.client;
+
+import java.util.List;
+
+// Holds RiemannBatchClient's writes between enqueue and flush. Any number of
+// threads may offer writes; RiemannBatchClient makes sure only one thread
+// drains at a time.
+public interface BatchBuffer {
+  // Adds a write. Returns how many writes are buffered, counting this one,
+  // or -1 if the write was refused.
+  int offer(final RiemannBatchClient.Write write);
+
+  // Moves up to max writes into the list, oldest first. Returns how many
+  // were moved.
+  int drainTo(final List<RiemannBatchClient.Write> into, final int max);
+
+  // Approximate number of writes buffered.
+  int size();
+
+  // Approximate encoded size of the buffered events.
+  long bytes();
+}
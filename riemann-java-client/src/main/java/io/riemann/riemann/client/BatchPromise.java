@@ -0,0 +1,180 @@
+package io.riemann.riemann.client;
+
+import io.riemann.riemann.Proto.Msg;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A single promise for any number of events sent through a
+// RiemannBatchClient, where a ChainPromise per event used to be.
+//
+// Each event retains the promise while it waits in the buffer. When a flush
+// sends some of its events, the message's promise is attached here and those
+// events are released. Once the promise is sealed--no more events may
+// join--and every event has been released, deref() waits on the attached
+// messages and returns the last response, or throws the first failure.
+//
+// There's one latch per batch promise, and one attach per message it
+// appears in, no matter how many events it covers. The flip side is that
+// failing any of its events, say one evicted from a full buffer, fails the
+// whole promise.
+public class BatchPromise implements IPromise<Msg> {
+  // What a promise with no events at all derefs to.
+  public static final Msg EMPTY_ACK = Msg.newBuilder().setOk(true).build();
+
+  private static final long SEALED = 1L << 62;
+
+  // Retained events, plus the SEALED bit.
+  private final AtomicLong state = new AtomicLong();
+  public final CountDownLatch sent = new CountDownLatch(1);
+
+  // Guarded by this.
+  private IPromise<Msg>[] attached = newArray(2);
+  private int attachedCount = 0;
+
+  @SuppressWarnings("unchecked")
+  private static IPromise<Msg>[] newArray(final int n) {
+    return (IPromise<Msg>[]) new IPromise[n];
+  }
+
+  // Adds n events. Returns false, adding none, if already sealed.
+  public boolean retain(final int n) {
+    while (true) {
+      final long s = state.get();
+      if ((s & SEALED) != 0) {
+        return false;
+      }
+      if (state.compareAndSet(s, s + n)) {
+        return true;
+      }
+    }
+  }
+
+  public boolean retain() {
+    return retain(1);
+  }
+
+  // Events retained and not yet released.
+  public long pending() {
+    return state.get() & ~SEALED;
+  }
+
+  public boolean isSealed() {
+    return (state.get() & SEALED) != 0;
+  }
+
+  // No more events may join.
+  public void seal() {
+    while (true) {
+      final long s = state.get();
+      if ((s & SEALED) != 0) {
+        return;
+      }
+      if (state.compareAndSet(s, s | SEALED)) {
+        if (s == 0) {
+          sent.countDown();
+        }
+        return;
+      }
+    }
+  }
+
+  // Records the promise of a message carrying some of our events. Call
+  // before releasing them.
+  public synchronized void attach(final IPromise<Msg> p) {
+    if (attachedCount == attached.length) {
+      final IPromise<Msg>[] bigger = newArray(attachedCount * 2);
+      System.arraycopy(attached, 0, bigger, 0, attachedCount);
+      attached = bigger;
+    }
+    attached[attachedCount++] = p;
+  }
+
+  // n events are on their way, or have been dealt with.
+  public void release(final int n) {
+    if (state.addAndGet(-n) == SEALED) {
+      sent.countDown();
+    }
+  }
+
+  // Fails n events outright.
+  public void fail(final int n, final IOException e) {
+    final Promise<Msg> failed = new Promise<Msg>();
+    failed.deliver(e);
+    attach(failed);
+    release(n);
+  }
+
+  private synchronized IPromise<Msg>[] attachments() {
+    final IPromise<Msg>[] a = newArray(attachedCount);
+    System.arraycopy(attached, 0, a, 0, attachedCount);
+    return a;
+  }
+
+  @Override
+  public void deliver(final Object value) {
+    throw new UnsupportedOperationException("Can't deliver to a batch promise; deliver to the underlying promise instead?");
+  }
+
+  @Override
+  public Msg deref() throws IOException {
+    try {
+      sent.await();
+    } catch (InterruptedException e) {
+      return null;
+    }
+
+    Msg last = EMPTY_ACK;
+    for (IPromise<Msg> p : attachments()) {
+      last = p.deref();
+    }
+    return last;
+  }
+
+  @Override
+  public Msg deref(final long time, final TimeUnit unit) throws IOException {
+    return deref(time, unit, null);
+  }
+
+  @Override
+  public Msg deref(final long time, final TimeUnit unit, final Msg timeoutValue)
+                  throws IOException {
+    return (Msg) unsafeDeref(time, unit, timeoutValue);
+  }
+
+  @Override
+  public Object deref(final long millis, final Object timeoutValue)
+                     throws IOException {
+    return unsafeDeref(millis, TimeUnit.MILLISECONDS, timeoutValue);
+  }
+
+  @Override
+  public Object unsafeDeref(final long time,
+                            final TimeUnit unit,
+                            final Object timeoutValue)
+                           throws IOException {
+    final long deadline = System.nanoTime() + unit.toNanos(time);
+    try {
+      if (! sent.await(time, unit)) {
+        return timeoutValue;
+      }
+    } catch (InterruptedException e) {
+      return timeoutValue;
+    }
+
+    Object last = EMPTY_ACK;
+    for (IPromise<Msg> p : attachments()) {
+      last = p.unsafeDeref(deadline - System.nanoTime(), TimeUnit.NANOSECONDS, timeoutValue);
+      if (last == timeoutValue) {
+        return timeoutValue;
+      }
+    }
+    return last;
+  }
+
+  @Override
+  public <T2> IPromise<T2> map(Fn2<Msg, T2> f) {
+    return new MapPromise<Msg, T2>(this, f);
+  }
+}
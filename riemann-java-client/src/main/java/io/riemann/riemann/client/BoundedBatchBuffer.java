@@ -0,0 +1,204 @@
+package io.riemann.riemann.client;
+
+import java.util.List;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A linked BatchBuffer with a cap on both the number of writes and their
+// encoded bytes, so an unreachable or slow server can't fill the heap. What
+// happens to a write which doesn't fit is up to the OverflowPolicy, and each
+// outcome has its own counter.
+//
+// A single write larger than maxBytes is still let into an empty buffer.
+// Writes pushed out to make room have their promises failed with an
+// OverloadedException, like refused ones.
+public class BoundedBatchBuffer implements BatchBuffer {
+  public enum OverflowPolicy {
+    // Refuse the incoming write.
+    DROP_NEWEST,
+    // Evict the oldest buffered writes to make room.
+    DROP_OLDEST,
+    // Wait up to blockTimeoutMillis for room, then refuse.
+    BLOCK,
+    // Let one in every sampleEvery overflowing writes in, evicting the
+    // oldest to make room; refuse the rest.
+    SAMPLE
+  }
+
+  public final int maxWrites;
+  public final long maxBytes;
+  public final OverflowPolicy policy;
+  public final AtomicLong blockTimeoutMillis = new AtomicLong(100);
+  public final AtomicInteger sampleEvery = new AtomicInteger(10);
+  // Run when a write doesn't fit, so the consumer can be woken.
+  public volatile Runnable onFull;
+
+  public final LinkedTransferQueue<RiemannBatchClient.Write> queue =
+    new LinkedTransferQueue<RiemannBatchClient.Write>();
+  public final AtomicInteger size = new AtomicInteger();
+  public final AtomicLong bytes = new AtomicLong();
+
+  // Overflow outcomes
+  public final LongAdder droppedNewest = new LongAdder();
+  public final LongAdder droppedOldest = new LongAdder();
+  public final LongAdder blocked = new LongAdder();
+  public final LongAdder blockTimeouts = new LongAdder();
+  public final LongAdder sampledIn = new LongAdder();
+  public final LongAdder sampledOut = new LongAdder();
+
+  private final AtomicLong overflows = new AtomicLong();
+  private final AtomicInteger waiters = new AtomicInteger();
+  private final ReentrantLock roomLock = new ReentrantLock();
+  private final Condition room = roomLock.newCondition();
+
+  public BoundedBatchBuffer(final int maxWrites,
+                            final long maxBytes,
+                            final OverflowPolicy policy) {
+    if (maxWrites < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("bounds must be positive");
+    }
+    this.maxWrites = maxWrites;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+  }
+
+  // Claims room for a write, or returns false if there isn't any.
+  private boolean reserve(final RiemannBatchClient.Write write) {
+    if (maxWrites < size.incrementAndGet()) {
+      size.decrementAndGet();
+      return false;
+    }
+    final long b = bytes.addAndGet(write.size);
+    if (maxBytes < b && write.size < b) {
+      size.decrementAndGet();
+      bytes.addAndGet(-write.size);
+      return false;
+    }
+    return true;
+  }
+
+  private int add(final RiemannBatchClient.Write write) {
+    queue.put(write);
+    return size.get();
+  }
+
+  @Override
+  public int offer(final RiemannBatchClient.Write write) {
+    if (reserve(write)) {
+      return add(write);
+    }
+
+    final Runnable r = onFull;
+    if (r != null) {
+      r.run();
+    }
+
+    switch (policy) {
+      case DROP_OLDEST:
+        evictFor(write);
+        return add(write);
+      case BLOCK:
+        if (await(write)) {
+          blocked.increment();
+          return add(write);
+        }
+        blockTimeouts.increment();
+        return -1;
+      case SAMPLE:
+        final int every = Math.max(1, sampleEvery.get());
+        if (overflows.getAndIncrement() % every == 0) {
+          sampledIn.increment();
+          evictFor(write);
+          return add(write);
+        }
+        sampledOut.increment();
+        return -1;
+      default:
+        droppedNewest.increment();
+        return -1;
+    }
+  }
+
+  // Evicts the oldest writes until this one fits.
+  private void evictFor(final RiemannBatchClient.Write write) {
+    while (! reserve(write)) {
+      final RiemannBatchClient.Write old = queue.poll();
+      if (old == null) {
+        // The consumer has them, and is about to account for it.
+        Thread.yield();
+        continue;
+      }
+      size.decrementAndGet();
+      bytes.addAndGet(-old.size);
+      droppedOldest.increment();
+      if (old.promise != null) {
+        old.promise.fail(1, new OverloadedException("evicted from full batch buffer"));
+      }
+    }
+  }
+
+  // Waits for room until blockTimeoutMillis passes. Returns true once the
+  // write has room reserved.
+  private boolean await(final RiemannBatchClient.Write write) {
+    final long deadline = System.nanoTime()
+      + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis.get());
+    waiters.incrementAndGet();
+    roomLock.lock();
+    try {
+      while (! reserve(write)) {
+        final long left = deadline - System.nanoTime();
+        if (left <= 0) {
+          return false;
+        }
+        room.awaitNanos(left);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      roomLock.unlock();
+      waiters.decrementAndGet();
+    }
+  }
+
+  @Override
+  public int drainTo(final List<RiemannBatchClient.Write> into, final int max) {
+    final int start = into.size();
+    final int n = queue.drainTo(into, max);
+    if (n == 0) {
+      return 0;
+    }
+    long drained = 0;
+    for (int i = start; i < start + n; i++) {
+      drained += into.get(i).size;
+    }
+    size.addAndGet(-n);
+    bytes.addAndGet(-drained);
+
+    if (0 < waiters.get()) {
+      roomLock.lock();
+      try {
+        room.signalAll();
+      } finally {
+        roomLock.unlock();
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public long bytes() {
+    return bytes.get();
+  }
+}
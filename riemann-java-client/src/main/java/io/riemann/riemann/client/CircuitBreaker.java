@@ -0,0 +1,230 @@
+package io.riemann.riemann.client;
+
+import io.riemann.riemann.Proto.Msg;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fails a transport's sends fast while its endpoint is unreachable or too
+// slow to answer, rather than building a Write, a promise and an exception
+// for each one only to throw them away.
+//
+// CLOSED lets everything through. It opens when the connection is DOWN and
+// has failed to reconnect connectFailures times in a row, or when more than
+// timeoutPercent of the writes settled in a sampling window timed out or were
+// lost, given at least minSamples of them. OPEN refuses everything for
+// openMillis, then goes HALF_OPEN and lets up to `probes` writes through.
+// The first acknowledgement closes it again; a lost or timed out probe, a
+// connection still down, or no answer within openMillis reopens it.
+//
+// A refusal costs a few volatile reads and a clock read. Callers fail it
+// with the shared OPEN exception, or hand out the already failed REJECTED
+// promise, so nothing is allocated.
+public class CircuitBreaker {
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  public static final CircuitOpenException OPEN =
+    new CircuitOpenException("circuit breaker is open");
+  public static final Promise<Msg> REJECTED = new Promise<Msg>();
+  static {
+    REJECTED.deliver(OPEN);
+  }
+
+  public final AtomicBoolean enabled      = new AtomicBoolean(true);
+  public final AtomicInteger connectFailures = new AtomicInteger(2);
+  public final AtomicInteger timeoutPercent  = new AtomicInteger(50);
+  public final AtomicInteger minSamples   = new AtomicInteger(20);
+  public final AtomicLong    windowMillis = new AtomicLong(1000);
+  public final AtomicLong    openMillis   = new AtomicLong(1000);
+  public final AtomicInteger probes       = new AtomicInteger(1);
+
+  public volatile State state = State.CLOSED;
+  // Sends refused, and times the breaker opened.
+  public final LongAdder rejected = new LongAdder();
+  public final LongAdder opened = new LongAdder();
+
+  private final ConnectionHealth health;
+  private final AckStats stats;
+  // In nanoTime. CLOSED: the end of the sampling window. OPEN: when to go
+  // half-open. HALF_OPEN: when to give up on the probes.
+  private final AtomicLong deadline;
+  private final AtomicInteger permits = new AtomicInteger();
+  // Acknowledged and lost writes at the start of the window or the probes.
+  private long baseAcked = 0;
+  private long baseLost = 0;
+
+  public CircuitBreaker(final ConnectionHealth health, final AckStats stats) {
+    this.health = health;
+    this.stats = stats;
+    this.deadline = new AtomicLong(System.nanoTime() + nanos(windowMillis));
+  }
+
+  private static long nanos(final AtomicLong millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis.get());
+  }
+
+  // Would a send be refused right now? Like allow(), this moves an open
+  // breaker to half-open once openMillis have passed, and settles a
+  // half-open one whose probes have answered, so callers which only ask
+  // still see it recover. Takes no probe and counts no rejection.
+  public boolean isOpen() {
+    if (! enabled.get()) {
+      return false;
+    }
+
+    switch (state) {
+      case OPEN:
+        final long now = System.nanoTime();
+        if (now - deadline.get() < 0) {
+          return true;
+        }
+        halfOpen(now);
+        return false;
+
+      case HALF_OPEN:
+        if (0 < permits.get()) {
+          return false;
+        }
+        settle(System.nanoTime());
+        return state != State.CLOSED;
+
+      default:
+        return false;
+    }
+  }
+
+  // May a send go ahead? Counts a rejection if not.
+  public boolean allow() {
+    if (! enabled.get()) {
+      return true;
+    }
+
+    final long now;
+    switch (state) {
+      case CLOSED:
+        if (health.state == ConnectionHealth.State.DOWN
+            && Math.max(1, connectFailures.get()) <= health.consecutiveFailures) {
+          trip(System.nanoTime());
+          break;
+        }
+        now = System.nanoTime();
+        final long end = deadline.get();
+        if (0 <= now - end
+            && deadline.compareAndSet(end, now + nanos(windowMillis))) {
+          sample(now);
+        }
+        if (state == State.CLOSED) {
+          return true;
+        }
+        break;
+
+      case OPEN:
+        now = System.nanoTime();
+        if (now - deadline.get() < 0) {
+          break;
+        }
+        halfOpen(now);
+        return probe(now);
+
+      case HALF_OPEN:
+        return probe(System.nanoTime());
+    }
+
+    rejected.increment();
+    return false;
+  }
+
+  private long lost() {
+    return stats.timeouts.sum() + stats.failed.sum();
+  }
+
+  // Opens the breaker if too many writes in the last window went unanswered.
+  private synchronized void sample(final long now) {
+    if (state != State.CLOSED) {
+      return;
+    }
+    final long acked = stats.acked.sum();
+    final long lost = lost();
+    final long a = acked - baseAcked;
+    final long l = lost - baseLost;
+    baseAcked = acked;
+    baseLost = lost;
+    if (minSamples.get() <= a + l && timeoutPercent.get() * (a + l) < 100 * l) {
+      trip(now);
+    }
+  }
+
+  private boolean probe(final long now) {
+    int p = permits.get();
+    while (0 < p) {
+      if (permits.compareAndSet(p, p - 1)) {
+        return true;
+      }
+      p = permits.get();
+    }
+
+    settle(now);
+    if (state == State.CLOSED) {
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  // Decides a half-open breaker once its probes have answered.
+  private synchronized void settle(final long now) {
+    if (state != State.HALF_OPEN) {
+      return;
+    }
+    if (baseLost < lost()) {
+      trip(now);
+    } else if (health.isUsable() && baseAcked < stats.acked.sum()) {
+      close(now);
+    } else if (! health.isUsable() || 0 <= now - deadline.get()) {
+      trip(now);
+    }
+  }
+
+  private synchronized void trip(final long now) {
+    if (state != State.OPEN) {
+      state = State.OPEN;
+      deadline.set(now + nanos(openMillis));
+      opened.increment();
+    }
+  }
+
+  private synchronized void halfOpen(final long now) {
+    if (state == State.OPEN) {
+      baseAcked = stats.acked.sum();
+      baseLost = lost();
+      permits.set(probes.get());
+      deadline.set(now + nanos(openMillis));
+      state = State.HALF_OPEN;
+    }
+  }
+
+  private synchronized void close(final long now) {
+    baseAcked = stats.acked.sum();
+    baseLost = lost();
+    deadline.set(now + nanos(windowMillis));
+    state = State.CLOSED;
+  }
+
+  // Forgets any trouble; for a freshly (re)connected transport.
+  public synchronized void reset() {
+    close(System.nanoTime());
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreaker{" + state
+      + ", opened=" + opened.sum()
+      + ", rejected=" + rejected.sum() + "}";
+  }
+}
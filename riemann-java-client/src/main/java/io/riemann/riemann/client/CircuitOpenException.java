@@ -0,0 +1,16 @@
+package io.riemann.riemann.client;
+
+// Fails sends refused by an open CircuitBreaker. There is one shared
+// instance, CircuitBreaker.OPEN, and it has no stack trace: a rejection
+// during an outage costs no allocation, and a trace would only ever point at
+// whichever send happened to build it.
+public class CircuitOpenException extends OverloadedException {
+  public CircuitOpenException(final String msg) {
+    super(msg);
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
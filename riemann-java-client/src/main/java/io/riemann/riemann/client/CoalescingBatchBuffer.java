@@ -0,0 +1,121 @@
+package io.riemann.riemann.client;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A BatchBuffer which keeps only the latest pending event for each (host,
+// service), the way Riemann's index does. A newer sample replaces the
+// buffered one in place, keeping its spot in line, so a backlog of gauges
+// re-emitted every second is bounded by how many there are rather than by
+// how long the connection was slow.
+//
+// A replaced event which shares its promise with the one replacing it--as
+// events sent one at a time between flushes do--simply stops counting
+// toward that promise, which still waits on the newer event. Otherwise the
+// replaced event's promise fails with a SupersededException, since nothing
+// it carried will be sent. Events without a service are never coalesced.
+public class CoalescingBatchBuffer implements BatchBuffer {
+  public final ConcurrentHashMap<Object, RiemannBatchClient.Write> latest =
+    new ConcurrentHashMap<Object, RiemannBatchClient.Write>();
+  // Keys in the order they were first buffered.
+  public final ConcurrentLinkedQueue<Object> order =
+    new ConcurrentLinkedQueue<Object>();
+  public final AtomicInteger size = new AtomicInteger();
+  public final LongAdder bytes = new LongAdder();
+  // Events replaced by a newer sample before they were sent.
+  public final LongAdder coalesced = new LongAdder();
+
+  public static final class Key {
+    public final String host;
+    public final String service;
+    private final int hash;
+
+    public Key(final String host, final String service) {
+      this.host = host;
+      this.service = service;
+      this.hash = 31 * host.hashCode() + service.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (! (o instanceof Key)) {
+        return false;
+      }
+      final Key k = (Key) o;
+      return hash == k.hash && service.equals(k.service) && host.equals(k.host);
+    }
+  }
+
+  @Override
+  public int offer(final RiemannBatchClient.Write write) {
+    final Object key = write.service.isEmpty()
+      ? new Object()
+      : new Key(write.host, write.service);
+
+    final RiemannBatchClient.Write prev = latest.put(key, write);
+    if (prev == null) {
+      bytes.add(write.size);
+      order.add(key);
+      return size.incrementAndGet();
+    }
+
+    // Superseded
+    bytes.add(write.size - prev.size);
+    coalesced.increment();
+    if (prev.promise == write.promise) {
+      if (prev.promise != null) {
+        prev.promise.release(1);
+      }
+    } else if (prev.promise != null) {
+      prev.promise.fail(1, new SupersededException(
+            "replaced by a newer event for " + write.host + " " + write.service));
+    }
+    return size.get();
+  }
+
+  // Only ever called by one thread at a time.
+  @Override
+  public int drainTo(final List<RiemannBatchClient.Write> into, final int max) {
+    int n = 0;
+    long drained = 0;
+    while (n < max) {
+      final Object key = order.poll();
+      if (key == null) {
+        break;
+      }
+      final RiemannBatchClient.Write write = latest.remove(key);
+      if (write == null) {
+        continue;
+      }
+      into.add(write);
+      drained += write.size;
+      n++;
+    }
+    if (0 < n) {
+      size.addAndGet(-n);
+      bytes.add(-drained);
+    }
+    return n;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public long bytes() {
+    return bytes.sum();
+  }
+}
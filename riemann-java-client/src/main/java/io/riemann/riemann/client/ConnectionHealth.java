@@ -0,0 +1,96 @@
+package io.riemann.riemann.client;
+
+// How a transport's connections are faring, for layers above it which would
+// rather not feed a dead channel. ReconnectHandlers report each channel
+// coming up, going down, or failing to connect; anyone may read.
+//
+// CONNECTING until the first connection attempt settles. UP while every
+// expected connection is open, DEGRADED while only some are, and DOWN while
+// none are--including between reconnection attempts.
+public class ConnectionHealth {
+  public enum State {
+    CONNECTING,
+    UP,
+    DEGRADED,
+    DOWN
+  }
+
+  public volatile State state = State.DOWN;
+  // When we entered the current state, in ms since the epoch.
+  public volatile long stateSince = System.currentTimeMillis();
+  public volatile long lastUp = -1;
+  public volatile long lastDown = -1;
+  public volatile long lastFailure = -1;
+  // Connection attempts which failed since a channel last came up, and ever.
+  public volatile int consecutiveFailures = 0;
+  public volatile long failures = 0;
+  public volatile int activeChannels = 0;
+  public volatile int expectedChannels = 1;
+  // Set once the transport is closed, so nothing reconnects it.
+  public volatile boolean closed = false;
+
+  // Can anything be written right now?
+  public boolean isUsable() {
+    final State s = state;
+    return s == State.UP || s == State.DEGRADED;
+  }
+
+  public synchronized void connecting(final int expected) {
+    expectedChannels = expected;
+    activeChannels = 0;
+    consecutiveFailures = 0;
+    closed = false;
+    become(State.CONNECTING);
+  }
+
+  public synchronized void channelUp() {
+    activeChannels++;
+    consecutiveFailures = 0;
+    lastUp = System.currentTimeMillis();
+    update();
+  }
+
+  public synchronized void channelDown() {
+    activeChannels = Math.max(0, activeChannels - 1);
+    lastDown = System.currentTimeMillis();
+    update();
+  }
+
+  public synchronized void connectFailed() {
+    consecutiveFailures++;
+    failures++;
+    lastFailure = System.currentTimeMillis();
+    update();
+  }
+
+  // The transport was closed.
+  public synchronized void closed() {
+    closed = true;
+    activeChannels = 0;
+    become(State.DOWN);
+  }
+
+  private void update() {
+    if (activeChannels <= 0) {
+      become(State.DOWN);
+    } else if (activeChannels < expectedChannels) {
+      become(State.DEGRADED);
+    } else {
+      become(State.UP);
+    }
+  }
+
+  private void become(final State s) {
+    if (state != s) {
+      state = s;
+      stateSince = System.currentTimeMillis();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return state + " since " + stateSince
+      + " (" + activeChannels + "/" + expectedChannels + " channels, "
+      + consecutiveFailures + " consecutive failures)";
+  }
+}
@@ -0,0 +1,51 @@
+package io.riemann.riemann.client;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.riemann.riemann.Proto.Event;
+import io.riemann.riemann.Proto.Msg;
+import java.io.IOException;
+
+// A Msg which has already been serialized, as a run of byte chunks. Protobuf
+// fields may be concatenated at the byte level, so a batch of individually
+// encoded `events` fields is itself a valid Msg: MsgEncoder only has to copy
+// the chunks behind a frame header, and nothing ever builds the Msg object.
+public class EncodedMsg {
+  public final byte[][] chunks;
+  public final int count;
+  // Total length of the chunks; the Msg's serialized size.
+  public final int size;
+
+  public EncodedMsg(final byte[][] chunks, final int count, final int size) {
+    this.chunks = chunks;
+    this.count = count;
+    this.size = size;
+  }
+
+  // Encodes an event as a complete Msg `events` field: tag, length, and
+  // body.
+  public static byte[] encodeEvent(final Event event) {
+    final byte[] bytes = new byte[
+      CodedOutputStream.computeMessageSize(Msg.EVENTS_FIELD_NUMBER, event)];
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    try {
+      out.writeMessage(Msg.EVENTS_FIELD_NUMBER, event);
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // Can't happen; the array is exactly the right size.
+      throw new IllegalStateException(e);
+    }
+    return bytes;
+  }
+
+  // Parses the Msg back out, for transports which can only send Msgs.
+  public Msg toMsg() throws InvalidProtocolBufferException {
+    final byte[] bytes = new byte[size];
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(chunks[i], 0, bytes, offset, chunks[i].length);
+      offset += chunks[i].length;
+    }
+    return Msg.parseFrom(bytes);
+  }
+}
@@ -142,4 +142,8 @@ public class EventDSL {
     public IPromise<Msg> send() {
       return client.sendEvent(build());
     }
+
+    public boolean sendAndForget() {
+      return client.sendEventAndForget(build());
+    }
 }
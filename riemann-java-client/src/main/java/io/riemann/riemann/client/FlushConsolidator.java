@@ -0,0 +1,62 @@
+package io.riemann.riemann.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+// Coalesces flushes on a single channel. With autoFlush every message asks
+// for a flush, and with TCP_NODELAY every flush is its own syscall and
+// packet. Netty's FlushConsolidationHandler defers them to the end of the
+// event loop tick, so every write which arrives in the meantime goes out in
+// a single gathering write, and forces one after maxMessages flushes. On top
+// of that, a flush is forced once maxBytes have been written since the tick
+// began, which bounds the buffering cost of consolidating large messages.
+//
+// Must sit below the encoders in the pipeline, where writes are ByteBufs, so
+// that pending bytes can be counted. Not sharable; all state is confined to
+// the channel's event loop.
+public class FlushConsolidator extends FlushConsolidationHandler {
+  public final int maxMessages;
+  public final int maxBytes;
+
+  private long pendingBytes = 0;
+  private boolean resetScheduled = false;
+
+  // Runs at the end of the tick, alongside the consolidated flush.
+  private final Runnable resetTask = new Runnable() {
+    @Override
+    public void run() {
+      resetScheduled = false;
+      pendingBytes = 0;
+    }
+  };
+
+  public FlushConsolidator(final int maxMessages, final int maxBytes) {
+    super(maxMessages, true);
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+    if (msg instanceof ByteBuf) {
+      pendingBytes += ((ByteBuf) msg).readableBytes();
+      if (! resetScheduled) {
+        resetScheduled = true;
+        ctx.executor().execute(resetTask);
+      }
+    }
+    ctx.write(msg, promise);
+  }
+
+  @Override
+  public void flush(ChannelHandlerContext ctx) throws Exception {
+    if (maxBytes <= pendingBytes) {
+      pendingBytes = 0;
+      ctx.flush();
+    } else {
+      super.flush(ctx);
+    }
+  }
+}
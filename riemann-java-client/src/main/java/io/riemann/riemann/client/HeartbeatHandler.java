@@ -0,0 +1,88 @@
+package io.riemann.riemann.client;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.riemann.riemann.Proto.Msg;
+
+// Probes a channel which has gone quiet. A NAT or load balancer which drops
+// our flow without a word leaves the socket looking healthy: writes pile up
+// in the kernel's buffer, and SO_KEEPALIVE takes hours to notice. When the
+// IdleStateHandler ahead of us reports nothing read for a while, we write an
+// empty Msg--which the server simply acknowledges--through the TcpHandler,
+// with its own deadline. If it isn't answered in time, or fails, the channel
+// is closed and the ReconnectHandler replaces it.
+//
+// Must sit after the TcpHandler, so the probe passes through it and is
+// matched to its response like any other write. Not sharable; all state is
+// confined to the channel's event loop.
+public class HeartbeatHandler extends ChannelInboundHandlerAdapter {
+  public static final Msg HEARTBEAT = Msg.getDefaultInstance();
+
+  public final AckStats stats;
+  // Time, in ms, the server has to answer a heartbeat.
+  public final long timeoutMillis;
+  // Whether a heartbeat is awaiting its answer.
+  public boolean pending = false;
+
+  public HeartbeatHandler(final AckStats stats, final long timeoutMillis) {
+    this.stats = stats;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public class Heartbeat extends Promise<Msg> {
+    public final ChannelHandlerContext ctx;
+
+    public Heartbeat(final ChannelHandlerContext ctx) {
+      this.ctx = ctx;
+    }
+
+    @Override
+    public void deliver(final Object value) {
+      super.deliver(value);
+      pending = false;
+      if (! (value instanceof Throwable) || ! ctx.channel().isActive()) {
+        return;
+      }
+
+      // The server, or the path to it, is gone. Anything else written
+      // since won't be answered either; the TcpHandler fails it all with
+      // lastError once the channel is closed.
+      stats.heartbeatFailures.increment();
+      final TcpHandler handler = ctx.pipeline().get(TcpHandler.class);
+      if (handler != null) {
+        handler.lastError = new ResponseTimeoutException(
+            "no response to heartbeat within " + timeoutMillis
+            + " ms; reconnecting");
+      }
+      ctx.channel().close();
+    }
+  }
+
+  @Override
+  public void userEventTriggered(final ChannelHandlerContext ctx,
+                                 final Object evt) throws Exception {
+    if (evt instanceof IdleStateEvent
+        && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+      if (! pending) {
+        beat(ctx);
+      }
+      return;
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+
+  // Writes a heartbeat from the tail of the pipeline.
+  public void beat(final ChannelHandlerContext ctx) {
+    final TcpHandler handler = ctx.pipeline().get(TcpHandler.class);
+    if (handler != null) {
+      // Balances the TcpHandler's count when it's answered.
+      handler.outstanding.incrementAndGet();
+    }
+    pending = true;
+    stats.heartbeats.increment();
+    ctx.channel().writeAndFlush(
+        new Write(HEARTBEAT, new Heartbeat(ctx), timeoutMillis));
+  }
+}
@@ -14,6 +14,21 @@ public interface IRiemannClient extends AsynchronousTransport {
   IPromise<Msg> sendEvents(final Event... events);
   IPromise<Msg> sendEvents(final List<Event> events);
 
+  // Send a message or event without waiting on, or allocating, a promise for
+  // the response. Returns false if it was rejected outright; beyond that,
+  // there is no indication of whether it arrived. By default these just
+  // send asynchronously and drop the promise; clients with a cheaper path
+  // override them.
+  default boolean sendMessageAndForget(final Msg msg) {
+    sendMessage(msg);
+    return true;
+  }
+
+  default boolean sendEventAndForget(final Event event) {
+    sendEvent(event);
+    return true;
+  }
+
   // Send an exception as an event.
   IPromise<Msg> sendException(final String service, final Throwable t);
 
@@ -0,0 +1,195 @@
+package io.riemann.riemann.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringDatagramChannel;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+
+// Which Netty I/O implementation a transport runs on. The native transports
+// are optional dependencies, so each mode falls back to the next one down
+// (IO_URING to EPOLL to NIO) when its library is missing from the classpath
+// or the kernel can't support it; resolve() says what you'll actually get.
+//
+// Every reference to a native class lives in the Epolls and IoUrings holders,
+// which are only loaded once we know the library is usable.
+public enum IoMode {
+  NIO,
+  EPOLL,
+  IO_URING;
+
+  public static final boolean EPOLL_AVAILABLE = available(EPOLL);
+  public static final boolean IO_URING_AVAILABLE = available(IO_URING);
+
+  private static boolean available(final IoMode mode) {
+    try {
+      return mode == EPOLL ? Epolls.isAvailable() : IoUrings.isAvailable();
+    } catch (Throwable t) {
+      // Not on the classpath, or no native library for this platform.
+      return false;
+    }
+  }
+
+  // The mode that can actually be used on this host.
+  public IoMode resolve() {
+    if (this == IO_URING && IO_URING_AVAILABLE) {
+      return IO_URING;
+    }
+    if (this != NIO && EPOLL_AVAILABLE) {
+      return EPOLL;
+    }
+    return NIO;
+  }
+
+  // The mode of an existing event loop group, or null if it isn't one we
+  // know how to create channels for.
+  public static IoMode of(final EventLoopGroup group) {
+    if (group instanceof NioEventLoopGroup) {
+      return NIO;
+    }
+    if (EPOLL_AVAILABLE && Epolls.isGroup(group)) {
+      return EPOLL;
+    }
+    if (IO_URING_AVAILABLE && IoUrings.isGroup(group)) {
+      return IO_URING;
+    }
+    return null;
+  }
+
+  // A new event loop group; 0 threads picks Netty's default.
+  public EventLoopGroup newGroup(final int threads) {
+    switch (resolve()) {
+      case IO_URING: return IoUrings.newGroup(threads);
+      case EPOLL:    return Epolls.newGroup(threads);
+      default:       return new NioEventLoopGroup(threads);
+    }
+  }
+
+  public Class<? extends SocketChannel> socketChannel() {
+    switch (resolve()) {
+      case IO_URING: return IoUrings.socketChannel();
+      case EPOLL:    return Epolls.socketChannel();
+      default:       return NioSocketChannel.class;
+    }
+  }
+
+  public Class<? extends DatagramChannel> datagramChannel() {
+    switch (resolve()) {
+      case IO_URING: return IoUrings.datagramChannel();
+      case EPOLL:    return Epolls.datagramChannel();
+      default:       return NioDatagramChannel.class;
+    }
+  }
+
+  // Applies the Linux-only socket options this mode supports, silently
+  // skipping the rest. busyPollMicros <= 0 leaves SO_BUSY_POLL alone.
+  public void tcpOptions(final Bootstrap b,
+                         final boolean quickAck,
+                         final boolean fastOpenConnect,
+                         final int busyPollMicros) {
+    switch (resolve()) {
+      case IO_URING:
+        IoUrings.tcpOptions(b, quickAck, fastOpenConnect);
+        break;
+      case EPOLL:
+        Epolls.tcpOptions(b, quickAck, fastOpenConnect, busyPollMicros);
+        break;
+      default:
+        break;
+    }
+  }
+
+  public void udpOptions(final Bootstrap b, final int busyPollMicros) {
+    if (resolve() == EPOLL) {
+      Epolls.busyPoll(b, busyPollMicros);
+    }
+  }
+
+  static final class Epolls {
+    static boolean isAvailable() {
+      return Epoll.isAvailable();
+    }
+
+    static boolean isGroup(final EventLoopGroup group) {
+      return group instanceof EpollEventLoopGroup;
+    }
+
+    static EventLoopGroup newGroup(final int threads) {
+      return new EpollEventLoopGroup(threads);
+    }
+
+    static Class<? extends SocketChannel> socketChannel() {
+      return EpollSocketChannel.class;
+    }
+
+    static Class<? extends DatagramChannel> datagramChannel() {
+      return EpollDatagramChannel.class;
+    }
+
+    static void tcpOptions(final Bootstrap b,
+                           final boolean quickAck,
+                           final boolean fastOpenConnect,
+                           final int busyPollMicros) {
+      if (quickAck) {
+        b.option(EpollChannelOption.TCP_QUICKACK, true);
+      }
+      if (fastOpenConnect) {
+        b.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+      }
+      busyPoll(b, busyPollMicros);
+    }
+
+    static void busyPoll(final Bootstrap b, final int busyPollMicros) {
+      if (0 < busyPollMicros) {
+        b.option(EpollChannelOption.SO_BUSY_POLL, busyPollMicros);
+      }
+    }
+  }
+
+  static final class IoUrings {
+    static boolean isAvailable() {
+      return IOUring.isAvailable();
+    }
+
+    static boolean isGroup(final EventLoopGroup group) {
+      return group instanceof IOUringEventLoopGroup;
+    }
+
+    static EventLoopGroup newGroup(final int threads) {
+      return new IOUringEventLoopGroup(threads);
+    }
+
+    static Class<? extends SocketChannel> socketChannel() {
+      return IOUringSocketChannel.class;
+    }
+
+    static Class<? extends DatagramChannel> datagramChannel() {
+      return IOUringDatagramChannel.class;
+    }
+
+    // The io_uring transport doesn't expose SO_BUSY_POLL.
+    static void tcpOptions(final Bootstrap b,
+                           final boolean quickAck,
+                           final boolean fastOpenConnect) {
+      if (quickAck) {
+        b.option(IOUringChannelOption.TCP_QUICKACK, true);
+      }
+      if (fastOpenConnect) {
+        b.option(ChannelOption.TCP_FASTOPEN_CONNECT, true);
+      }
+    }
+  }
+}
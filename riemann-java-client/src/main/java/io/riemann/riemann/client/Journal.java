@@ -0,0 +1,291 @@
+package io.riemann.riemann.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// An append-only store-and-forward journal on local disk, for events which
+// can't be sent while Riemann is unreachable. Records are opaque byte
+// arrays; RiemannBatchClient stores encoded events.
+//
+// The journal is a directory of fixed-size segment files, each mapped into
+// memory. A record is a four-byte length followed by its bytes; the length
+// is written last, and a zero length marks the end of a segment. Appends
+// are plain memory copies into the page cache. Nothing is ever forced to
+// disk, so a process crash loses nothing but a host crash may lose the
+// tail.
+//
+// Segments are unmapped and deleted once fully read. Past maxBytes, the
+// oldest segment is dropped to make room for new records. A journal reopened
+// on the same directory picks up whatever the last one left behind, keeping
+// each old segment at its original size even if segmentBytes has changed;
+// records read but not yet dropped with their segment may be read again.
+// Delivery is at least once.
+public class Journal {
+  public static final String SUFFIX = ".journal";
+
+  public final File dir;
+  public final int segmentBytes;
+  public final long maxBytes;
+
+  // Oldest first. The last segment takes appends; the first is read from.
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  private long nextId = 0;
+  private long pending = 0;
+  // Bytes mapped across every segment.
+  private long mapped = 0;
+  private boolean closed = false;
+
+  public final LongAdder appended = new LongAdder();
+  // Records too large for a segment.
+  public final LongAdder refused = new LongAdder();
+  // Unread records dropped with the oldest segment to stay under maxBytes.
+  public final LongAdder evicted = new LongAdder();
+
+  // Unmaps a buffer now rather than whenever it's collected, so a deleted
+  // segment gives its disk space back. There's no public API for this:
+  // Java 9+ has Unsafe.invokeCleaner, Java 8 a cleaner on the buffer
+  // itself. Failing both, the collector gets to it eventually.
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      final Class<?> c = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field f = c.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      unsafe = f.get(null);
+    } catch (Exception e) {
+      // Java 8
+      invokeCleaner = null;
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  public static void unmap(final MappedByteBuffer buffer) {
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        return;
+      }
+      final Method cleaner = buffer.getClass().getMethod("cleaner");
+      cleaner.setAccessible(true);
+      final Object c = cleaner.invoke(buffer);
+      if (c != null) {
+        c.getClass().getMethod("clean").invoke(c);
+      }
+    } catch (Exception e) {
+      // Leave it to the collector.
+    }
+  }
+
+  public static final class Segment {
+    public final long id;
+    public final File file;
+    public final MappedByteBuffer buffer;
+    public int writePos = 0;
+    public int readPos = 0;
+    public int records = 0;
+    public int read = 0;
+
+    // Maps a segment file, creating it at the given size if it's new.
+    public Segment(final long id, final File file, final int bytes)
+      throws IOException {
+      this.id = id;
+      this.file = file;
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        if (raf.length() != bytes) {
+          raf.setLength(bytes);
+        }
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+      } finally {
+        raf.close();
+      }
+    }
+
+    // Unmaps and deletes the segment. It mustn't be touched afterwards.
+    public void delete() {
+      unmap(buffer);
+      file.delete();
+    }
+
+    // Finds the end of what an earlier journal wrote.
+    public void recover() {
+      while (writePos + 4 <= buffer.capacity()) {
+        final int len = buffer.getInt(writePos);
+        if (len <= 0 || buffer.capacity() < writePos + 4 + len) {
+          break;
+        }
+        writePos += 4 + len;
+        records++;
+      }
+    }
+  }
+
+  public Journal(final File dir, final int segmentBytes, final long maxBytes)
+    throws IOException {
+    if (segmentBytes < 64 || maxBytes < segmentBytes) {
+      throw new IllegalArgumentException("segments must be at least 64 bytes, and fit in maxBytes");
+    }
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+    if (! dir.isDirectory() && ! dir.mkdirs()) {
+      throw new IOException("can't create journal directory " + dir);
+    }
+
+    // Pick up where an earlier journal left off.
+    final File[] files = dir.listFiles();
+    final List<Long> ids = new ArrayList<Long>();
+    if (files != null) {
+      for (File f : files) {
+        final String name = f.getName();
+        if (name.endsWith(SUFFIX)) {
+          try {
+            ids.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            // Not ours
+          }
+        }
+      }
+    }
+    final Long[] sorted = ids.toArray(new Long[ids.size()]);
+    Arrays.sort(sorted);
+    for (Long id : sorted) {
+      // Keep whatever size the segment was written with.
+      final File f = file(id);
+      final long length = f.length();
+      nextId = id + 1;
+      if (length < 8 || Integer.MAX_VALUE < length) {
+        // Never got a record in.
+        f.delete();
+        continue;
+      }
+      final Segment s = new Segment(id, f, (int) length);
+      s.recover();
+      segments.addLast(s);
+      pending += s.records;
+      mapped += length;
+    }
+  }
+
+  private File file(final long id) {
+    return new File(dir, String.format("%020d", id) + SUFFIX);
+  }
+
+  // Unread records.
+  public synchronized long size() {
+    return pending;
+  }
+
+  public synchronized boolean isEmpty() {
+    return pending == 0;
+  }
+
+  // Appends a record. Returns false if it can never fit in a segment, the
+  // disk won't take another, or the journal is closed.
+  public synchronized boolean append(final byte[] record) {
+    if (closed || segmentBytes < record.length + 4) {
+      refused.increment();
+      return false;
+    }
+
+    Segment s = segments.peekLast();
+    if (s == null || s.buffer.capacity() < s.writePos + 4 + record.length) {
+      try {
+        s = roll();
+      } catch (IOException e) {
+        refused.increment();
+        return false;
+      }
+    }
+
+    // Bytes first, then the length which makes them visible.
+    final ByteBuffer b = s.buffer.duplicate();
+    ((Buffer) b).position(s.writePos + 4);
+    b.put(record);
+    s.buffer.putInt(s.writePos, record.length);
+    s.writePos += 4 + record.length;
+    s.records++;
+    pending++;
+    appended.increment();
+    return true;
+  }
+
+  // Starts a new segment, dropping the oldest if we'd go over maxBytes.
+  private Segment roll() throws IOException {
+    while (! segments.isEmpty() && maxBytes < mapped + segmentBytes) {
+      final Segment oldest = segments.pollFirst();
+      evicted.add(oldest.records - oldest.read);
+      pending -= oldest.records - oldest.read;
+      mapped -= oldest.buffer.capacity();
+      oldest.delete();
+    }
+    final Segment s = new Segment(nextId, file(nextId), segmentBytes);
+    nextId++;
+    segments.addLast(s);
+    mapped += segmentBytes;
+    return s;
+  }
+
+  // Moves up to max records, oldest first, into the list. Returns how many
+  // were moved.
+  public synchronized int read(final List<byte[]> into, final int max) {
+    int n = 0;
+    while (n < max) {
+      final Segment s = segments.peekFirst();
+      if (s == null) {
+        break;
+      }
+      if (s.read == s.records) {
+        if (s == segments.peekLast()) {
+          // Still being written.
+          break;
+        }
+        segments.pollFirst();
+        mapped -= s.buffer.capacity();
+        s.delete();
+        continue;
+      }
+
+      final int len = s.buffer.getInt(s.readPos);
+      final byte[] record = new byte[len];
+      final ByteBuffer b = s.buffer.duplicate();
+      ((Buffer) b).position(s.readPos + 4);
+      b.get(record);
+      s.readPos += 4 + len;
+      s.read++;
+      pending--;
+      into.add(record);
+      n++;
+    }
+    return n;
+  }
+
+  // Forgets every segment but leaves their files for a later journal, and
+  // refuses further appends.
+  public synchronized void close() {
+    closed = true;
+    for (Segment s : segments) {
+      unmap(s.buffer);
+    }
+    segments.clear();
+    mapped = 0;
+    pending = 0;
+  }
+}
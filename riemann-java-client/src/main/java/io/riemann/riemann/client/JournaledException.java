@@ -0,0 +1,10 @@
+package io.riemann.riemann.client;
+
+// Fails the promises of events which RiemannBatchClient wrote to its Journal
+// instead of sending, because the transport was down. They haven't reached
+// Riemann yet, but they will be replayed once it's reachable again.
+public class JournaledException extends java.io.IOException {
+  public JournaledException(final String msg) {
+    super(msg);
+  }
+}
@@ -0,0 +1,44 @@
+package io.riemann.riemann.client;
+
+import java.util.List;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// An unbounded BatchBuffer over a LinkedTransferQueue; the default.
+public class LinkedBatchBuffer implements BatchBuffer {
+  public final LinkedTransferQueue<RiemannBatchClient.Write> queue =
+    new LinkedTransferQueue<RiemannBatchClient.Write>();
+  public final AtomicInteger size = new AtomicInteger();
+  public final AtomicLong bytes = new AtomicLong();
+
+  @Override
+  public int offer(final RiemannBatchClient.Write write) {
+    queue.put(write);
+    bytes.addAndGet(write.size);
+    return size.incrementAndGet();
+  }
+
+  @Override
+  public int drainTo(final List<RiemannBatchClient.Write> into, final int max) {
+    final int start = into.size();
+    final int n = queue.drainTo(into, max);
+    long drained = 0;
+    for (int i = start; i < start + n; i++) {
+      drained += into.get(i).size;
+    }
+    size.addAndGet(-n);
+    bytes.addAndGet(-drained);
+    return n;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public long bytes() {
+    return bytes.get();
+  }
+}
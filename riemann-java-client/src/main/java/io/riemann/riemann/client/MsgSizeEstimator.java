@@ -0,0 +1,32 @@
+package io.riemann.riemann.client;
+
+import io.netty.channel.DefaultMessageSizeEstimator;
+import io.netty.channel.MessageSizeEstimator;
+import io.riemann.riemann.Proto.Msg;
+
+// Lets Netty count Msgs, EncodedMsgs and Writes at their framed size when
+// deciding channel writability, including writes still queued for the event
+// loop. Netty's default estimator only knows about buffers, so unencoded
+// messages used to count for almost nothing against the water marks.
+public class MsgSizeEstimator implements MessageSizeEstimator {
+  public static final MsgSizeEstimator INSTANCE = new MsgSizeEstimator();
+
+  private final Handle handle = new Handle() {
+    private final Handle fallback = DefaultMessageSizeEstimator.DEFAULT.newHandle();
+
+    @Override
+    public int size(Object msg) {
+      if (msg instanceof Write) {
+        return 4 + MsgEncoder.serializedSize(((Write) msg).message);
+      } else if (msg instanceof Msg || msg instanceof EncodedMsg) {
+        return 4 + MsgEncoder.serializedSize(msg);
+      }
+      return fallback.size(msg);
+    }
+  };
+
+  @Override
+  public Handle newHandle() {
+    return handle;
+  }
+}
@@ -0,0 +1,35 @@
+package io.riemann.riemann.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Delays between reconnection attempts, with "decorrelated jitter": each
+// delay is drawn uniformly between min and three times the previous one, and
+// capped at max. Delays grow quickly while a server stays down, yet a fleet
+// of clients which lost it at the same moment spreads its reconnects out
+// instead of arriving in lockstep. With max <= min, every delay is min.
+public class ReconnectBackoff {
+  // In milliseconds, shared with the transport's configuration.
+  public final AtomicLong min;
+  public final AtomicLong max;
+  private long last = -1;
+
+  public ReconnectBackoff(final AtomicLong min, final AtomicLong max) {
+    this.min = min;
+    this.max = max;
+  }
+
+  public synchronized long next() {
+    final long lo = Math.max(0, min.get());
+    final long hi = Math.max(lo, max.get());
+    final long prev = last < lo ? lo : last;
+    final long upper = Math.max(lo, Math.min(hi, prev * 3));
+    last = lo + ThreadLocalRandom.current().nextLong(upper - lo + 1);
+    return last;
+  }
+
+  // A connection succeeded; start over from min.
+  public synchronized void reset() {
+    last = -1;
+  }
+}
@@ -10,30 +10,65 @@ import java.net.ConnectException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+// Reconnects a channel once it's gone, after a delay from the stripe's
+// ReconnectBackoff, and reports the channel's comings and goings to the
+// transport's ConnectionHealth.
 public class ReconnectHandler extends ChannelInboundHandlerAdapter {
   private final Bootstrap bootstrap;
   private final ChannelGroup channels;
   public long startTime = -1;
-  public final AtomicLong delay;
-  public final TimeUnit unit;
+  public final ReconnectBackoff backoff;
+  public final ConnectionHealth health;
+  // Whether this handler's channel ever came up.
+  private boolean active = false;
 
+  // Reconnects after a fixed delay.
   public ReconnectHandler(Bootstrap bootstrap, ChannelGroup channels, AtomicLong delay, TimeUnit unit) {
+    this(bootstrap, channels,
+         new ReconnectBackoff(new AtomicLong(unit.toMillis(delay.get())),
+                              new AtomicLong(0)),
+         new ConnectionHealth());
+  }
+
+  public ReconnectHandler(Bootstrap bootstrap,
+                          ChannelGroup channels,
+                          ReconnectBackoff backoff,
+                          ConnectionHealth health) {
     this.bootstrap = bootstrap;
     this.channels = channels;
-    this.delay = delay;
-    this.unit = unit;
+    this.backoff = backoff;
+    this.health = health;
   }
 
   @Override
   public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
+    if (active) {
+      active = false;
+      health.channelDown();
+    } else {
+      // Never got connected.
+      health.connectFailed();
+    }
+
+    if (health.closed) {
+      // Nobody wants this connection anymore.
+      super.channelInactive(ctx);
+      return;
+    }
+
     try {
       ctx.executor().schedule(new Runnable() {
         @Override
         public void run() {
+          if (health.closed) {
+            // Closed while we waited; on a shared group, that doesn't
+            // cancel us.
+            return;
+          }
           ChannelFuture channelFuture = bootstrap.connect();
           channels.add(channelFuture.channel());
         }
-      }, delay.get(), unit);
+      }, backoff.next(), TimeUnit.MILLISECONDS);
     } catch (java.lang.IllegalStateException ex) {
       // The executor must have been stopped.
     }
@@ -45,6 +80,9 @@ public class ReconnectHandler extends ChannelInboundHandlerAdapter {
     if (startTime < 0) {
       startTime = System.currentTimeMillis();
     }
+    active = true;
+    backoff.reset();
+    health.channelUp();
     super.channelActive(ctx);
   }
 
@@ -0,0 +1,8 @@
+package io.riemann.riemann.client;
+
+// Thrown when the server does not acknowledge a message before its deadline.
+public class ResponseTimeoutException extends java.io.IOException {
+  public ResponseTimeoutException(final String msg) {
+    super(msg);
+  }
+}
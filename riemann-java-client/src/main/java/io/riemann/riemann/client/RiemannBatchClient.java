@@ -16,35 +16,230 @@ package io.riemann.riemann.client;
 // the event of resource problems, this should be acceptable for most
 // scenarios.
 //
-// To maximize throughput, BatchingRiemannClient is purely reactive, lockfree,
-// and makes no guarantees about event latency. Latency of sendEvents() may vary
-// widely, depending on whether or not that call flushed the buffer. You may
-// call flush() to force buffered events to be written. Flush is automatically
-// called at disconnect(). Calls to flush() may not clear the full buffer if
-// other threads are actively writing events.
+// To maximize throughput, BatchingRiemannClient is purely reactive, and by
+// default makes no guarantees about event latency. Latency of sendEvents()
+// may vary widely, depending on whether or not that call flushed the buffer.
+// You may call flush() to force buffered events to be written. Flush is
+// automatically called at disconnect(). Calls to flush() may not clear the
+// full buffer if other threads are actively writing events.
+//
+// To bound latency, set lingerMillis: a background thread then flushes any
+// event which has waited that long, much like Kafka's linger.ms. Batches are
+// also flushed once their encoded events reach maxBatchBytes, and no message
+// is built larger than that (save for a single oversized event).
+//
+// Each event is serialized as it's queued, on the producer's thread, and the
+// buffer holds only those bytes. Flushing splices a batch's bytes together
+// into an EncodedMsg, which the TCP transport writes without ever building
+// or re-serializing a Msg.
+//
+// Writes wait in a BatchBuffer. By default that's an unbounded linked queue,
+// and whichever producer fills a batch flushes it. With many producers, use
+// a RingBatchBuffer instead: it's preallocated, and producers only hand off
+// full batches to the background flusher, which builds and sends messages on
+// its own. Either way, only one thread drains the buffer at a time. To cap
+// memory when the server can't keep up, use a BoundedBatchBuffer, which
+// drops, evicts, samples or blocks once full. For gauges re-sent every
+// interval, a CoalescingBatchBuffer keeps only the latest event per host and
+// service.
+//
+// At most maxInFlight batches may await acknowledgement at once. They're
+// pipelined over the connection, and the buffer isn't drained again until an
+// ack frees a slot in the window, so throughput tracks window / RTT and the
+// transport never holds more than the window. Explicit flush() calls send
+// regardless. Fire-and-forget batches don't wait for acks and take no slot.
+//
+// Set adaptiveBatchSize to let the batch size follow the server. Each
+// acknowledged batch's round trip is timed. While full batches come back
+// within targetAckMillis, the size grows by one per ack. A slower ack or a
+// failure halves it, at most once per round trip. effectiveBatchSize is the
+// size in use, always between minBatchSize and maxBatchSize; batchSize is
+// only where it starts. Only TCP transports report acks.
+//
+// With dropExpiredEvents set, events with a ttl are dropped when they're
+// sent, retried or replayed from the journal once their time plus ttl has
+// passed--Riemann would only expire them on arrival. Events without a time
+// are timed from when they were queued, or read back from the journal. This
+// trusts the event times to agree with our clock, so it's off by default.
+// Dropped events count as delivered, and are tallied in `expired`.
+//
+// Events can skip the line. Those whose state is in priorityStates, which
+// carry a tag in priorityTags, or which are sent with sendPriorityEvent go
+// to a small lane of their own. It's sent as soon as they arrive, ahead of
+// any bulk batch, and regardless of the ack window. Only bulk events wait
+// for room, so when the buffer refuses writes, they're the ones shed.
+//
+// Give the client a Journal and events which can't be sent are spilled to
+// disk instead of dropped. That covers batches sent while the transport is
+// down (per its ConnectionHealth, for TCP), fire-and-forget batches the
+// transport turned away, and promised batches which failed with an
+// IOException. Those promises still fail, the first with a
+// JournaledException: the events are safe on disk, but not yet delivered.
+// Once the client is up again, the flusher replays the journal at up to
+// replayEventsPerSecond, within the ack window; replayed batches which fail
+// go back in.
+//
+// For at-least-once delivery, set maxRetries. A promised batch which fails
+// with an IOException--a write error, a dropped connection, an ack timeout--
+// is sent again after a capped, jittered exponential backoff, up to
+// maxRetries times and for no longer than retryMaxAgeMillis. Retries run on
+// the flusher thread and give up their slot in the window, so they can't
+// starve fresh traffic. A retry budget limits them to retryBudgetPercent of
+// fresh batches, plus a small reserve. Callers' promises only fail once a
+// batch is out of retries, and only then is it journaled.
+//
+// sendEvents hands whole batches of a large list straight to the client, as
+// long as the window has room; the remainder goes through the buffer. Those
+// batches may overtake events buffered earlier.
+//
+// Promises are per batch, not per event: sendEvents returns one promise for
+// all its events, and events sent one at a time share a BatchPromise with
+// whichever others were queued before the next flush. Either way, the
+// promise completes once every message carrying its events is acknowledged.
+// An event the buffer turns away fails on its own: sendEvent hands back a
+// failed promise rather than the shared one. An event evicted from a full
+// BoundedBatchBuffer or replaced in a CoalescingBatchBuffer has already
+// handed out its promise, though, so that fails for every event sharing it;
+// use sendEvents where that matters.
 //
 // If you need finer-grained control over events, access the underlying client
 // directly. Arbitrarily many BatchingRiemannClients may operate over a single
 // underlying client.
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.riemann.riemann.Proto.Msg;
 import io.riemann.riemann.Proto.Event;
 import java.io.IOException;
 
 public class RiemannBatchClient implements IRiemannClient {
+  // The configured batch size; see effectiveBatchSize for the one in use.
   public final int batchSize;
-  public final AtomicInteger bufferSize = new AtomicInteger();
-  public final LinkedTransferQueue<Write> buffer;
+  public final BatchBuffer buffer;
   public final IRiemannClient client;
+  // Whether producers leave full batches to the background flusher instead
+  // of sending them themselves.
+  public final boolean backgroundFlush;
+  // Held by whichever thread is draining the buffer.
+  public final ReentrantLock drainLock = new ReentrantLock();
 
   // Maximum time, in ms, we can wait for an event to be processed.
   public final AtomicLong readPromiseTimeout = new AtomicLong(5000);
+  // Maximum time, in ms, an event may sit in the buffer before a background
+  // flush sends it; 0 waits for a full batch.
+  public final AtomicLong lingerMillis = new AtomicLong(0);
+  // Maximum encoded size of the events in one message.
+  public final AtomicInteger maxBatchBytes = new AtomicInteger(1024 * 1024);
+  // Maximum batches awaiting acknowledgement at once; 0 for no limit.
+  public final AtomicInteger maxInFlight = new AtomicInteger(8);
+  // Batches sent and not yet acknowledged.
+  public final AtomicInteger inFlightBatches = new AtomicInteger(0);
+
+  // Adaptive batch sizing; see above.
+  public final AtomicBoolean adaptiveBatchSize = new AtomicBoolean(false);
+  public final AtomicInteger minBatchSize = new AtomicInteger(1);
+  public final AtomicInteger maxBatchSize;
+  public final AtomicLong targetAckMillis = new AtomicLong(50);
+  public final AtomicInteger effectiveBatchSize;
+  // When the batch size was last cut, so one slow round trip only cuts it
+  // once.
+  public final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime());
+  // Priority lane; see above.
+  public final Set<String> priorityStates = ConcurrentHashMap.newKeySet();
+  public final Set<String> priorityTags = ConcurrentHashMap.newKeySet();
+  public final LinkedBatchBuffer priorityBuffer = new LinkedBatchBuffer();
+  // Held by whichever thread is sending the priority lane.
+  public final ReentrantLock priorityLock = new ReentrantLock();
+  public final LongAdder prioritySent = new LongAdder();
+
+  // Retries; see above. 0 maxRetries turns them off.
+  public final AtomicInteger maxRetries = new AtomicInteger(0);
+  public final AtomicLong retryBaseMillis = new AtomicLong(100);
+  public final AtomicLong retryMaxMillis = new AtomicLong(10000);
+  public final AtomicLong retryMaxAgeMillis = new AtomicLong(60000);
+  public final AtomicInteger retryBudgetPercent = new AtomicInteger(20);
+  public static final long RETRY_BUDGET_RESERVE = 10;
+  public static final long RETRY_BUDGET_MAX = 1000;
+  // Retries we may spend, in hundredths.
+  public final AtomicLong retryTokens = new AtomicLong(RETRY_BUDGET_RESERVE * 100);
+  public final LongAdder retried = new LongAdder();
+  public final LongAdder retriesExhausted = new LongAdder();
+  public final LongAdder retriesTooOld = new LongAdder();
+  public final LongAdder retryBudgetExhausted = new LongAdder();
+
+  // Where events which can't be sent wait for the connection to come back;
+  // null to drop them.
+  public volatile Journal journal;
+  public final AtomicInteger replayEventsPerSecond = new AtomicInteger(10000);
+  public final LongAdder journaled = new LongAdder();
+  public final LongAdder replayed = new LongAdder();
+  public final AtomicBoolean replayScheduled = new AtomicBoolean(false);
+  public final Runnable replayTask = new Runnable() {
+    @Override
+    public void run() {
+      replayScheduled.set(false);
+      replay();
+    }
+  };
+  public static final long REPLAY_TICK_MILLIS = 100;
+
+  // Whether to drop events whose ttl has run out before sending them.
+  public final AtomicBoolean dropExpiredEvents = new AtomicBoolean(false);
+  // Events dropped at flush because their ttl had run out.
+  public final LongAdder expired = new LongAdder();
+  // Moving averages over acknowledged batches, for monitoring.
+  public final AtomicLong ackRttNanos = new AtomicLong(0);
+  public final AtomicLong ackedEventsPerSecond = new AtomicLong(0);
+
+  // The promise individually sent events join until the next flush seals it.
+  public final AtomicReference<BatchPromise> openPromise =
+    new AtomicReference<BatchPromise>(new BatchPromise());
+
+  // Runs linger flushes. Its thread exits when idle, so an unused scheduler
+  // costs nothing.
+  public final ScheduledThreadPoolExecutor scheduler;
+  public final AtomicBoolean lingerScheduled = new AtomicBoolean(false);
+  // Failed batches waiting for the flusher to journal them; see spillLater.
+  public final ConcurrentLinkedQueue<EncodedMsg> spills =
+    new ConcurrentLinkedQueue<EncodedMsg>();
+  public final Runnable spillTask = new Runnable() {
+    @Override
+    public void run() {
+      drainSpills();
+    }
+  };
+  public final Runnable lingerFlush = new Runnable() {
+    @Override
+    public void run() {
+      lingerScheduled.set(false);
+      flushWithinWindow();
+    }
+  };
+  // Drains full batches in the background.
+  public final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  public final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drainScheduled.set(false);
+      flushFull();
+    }
+  };
 
   public RiemannBatchClient(final IRiemannClient client)
                            throws UnsupportedJVMException {
@@ -54,9 +249,56 @@ public class RiemannBatchClient implements IRiemannClient {
   public RiemannBatchClient(final IRiemannClient client,
                             final int batchSize)
                            throws UnsupportedJVMException {
+    this(client, batchSize, new LinkedBatchBuffer(), false);
+  }
+
+  // Batches through a preallocated ring of ringSize writes, flushed in the
+  // background. The wait strategy decides what producers do when it's full.
+  public RiemannBatchClient(final IRiemannClient client,
+                            final int batchSize,
+                            final int ringSize,
+                            final RingBatchBuffer.WaitStrategy waitStrategy)
+                           throws UnsupportedJVMException {
+    this(client, batchSize, new RingBatchBuffer(ringSize, waitStrategy), true);
+    if (ringSize < batchSize) {
+      throw new IllegalArgumentException("ringSize must be at least batchSize");
+    }
+  }
+
+  public RiemannBatchClient(final IRiemannClient client,
+                            final int batchSize,
+                            final BatchBuffer buffer,
+                            final boolean backgroundFlush)
+                           throws UnsupportedJVMException {
     this.client = client;
     this.batchSize = batchSize;
-    this.buffer = new java.util.concurrent.LinkedTransferQueue<Write>();
+    this.effectiveBatchSize = new AtomicInteger(batchSize);
+    this.maxBatchSize = new AtomicInteger(batchSize * 10);
+    this.buffer = buffer;
+    this.backgroundFlush = backgroundFlush;
+    // Producers waiting on a full buffer need someone to empty it.
+    final Runnable onFull = new Runnable() {
+      @Override
+      public void run() {
+        scheduleDrain();
+      }
+    };
+    if (buffer instanceof RingBatchBuffer) {
+      ((RingBatchBuffer) buffer).onFull = onFull;
+    } else if (buffer instanceof BoundedBatchBuffer) {
+      ((BoundedBatchBuffer) buffer).onFull = onFull;
+    }
+    this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, "riemann-batch-flusher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.setKeepAliveTime(10, TimeUnit.SECONDS);
+    scheduler.allowCoreThreadTimeOut(true);
+    scheduler.setRemoveOnCancelPolicy(true);
   }
 
   @Override
@@ -66,13 +308,59 @@ public class RiemannBatchClient implements IRiemannClient {
 
   @Override
   public IPromise<Msg> sendEvents(final List<Event> events) {
-    final ChainPromise<Msg> p = new ChainPromise<Msg>();
+    final BatchPromise p = new BatchPromise();
+    p.retain(events.size());
+
+    // Priority events go first, on their own.
+    List<Event> bulk = events;
+    if (hasPriorityRules()) {
+      bulk = new ArrayList<Event>(events.size());
+      boolean urgent = false;
+      for (Event event : events) {
+        if (isPriority(event)) {
+          priorityBuffer.offer(new Write(event, p));
+          urgent = true;
+        } else {
+          bulk.add(event);
+        }
+      }
+      if (urgent) {
+        flushPriority();
+      }
+    }
+    final int n = bulk.size();
 
-    // Queue up all events with this IPromise.
-    for (Event event : events) {
-      queue(new Write(event, p));
+    // Whole batches skip the buffer and go straight out, so a big list
+    // costs a handful of messages instead of a queue operation per event--
+    // but only while the window has room for them.
+    final int size = effectiveBatchSize.get();
+    int direct = 0;
+    if (size <= n && hasWindow()) {
+      final ArrayList<Write> writes = new ArrayList<Write>(size);
+      while (direct + size <= n && hasWindow()) {
+        for (int i = direct; i < direct + size; i++) {
+          writes.add(new Write(bulk.get(i), p));
+        }
+        if (dropExpiredEvents.get()) {
+          removeExpired(writes);
+        }
+        sendSplit(writes);
+        writes.clear();
+        direct += size;
+      }
+      try {
+        client.flush();
+      } catch (IOException e) {
+        // not actually thrown by any implementation
+      }
     }
 
+    // Queue up the remainder with this IPromise.
+    for (int i = direct; i < n; i++) {
+      queue(new Write(bulk.get(i), p));
+    }
+
+    p.seal();
     return p;
   }
 
@@ -83,11 +371,119 @@ public class RiemannBatchClient implements IRiemannClient {
 
   @Override
   public IPromise<Msg> sendEvent(final Event event) {
-    final ChainPromise<Msg> p = new ChainPromise<Msg>();
-    queue(new Write(event, p));
+    if (hasPriorityRules() && isPriority(event)) {
+      return sendPriorityEvent(event);
+    }
+    final BatchPromise p = retainOpenPromise();
+    if (! enqueue(new Write(event, p))) {
+      // Fail just this event, not everything sharing p.
+      p.release(1);
+      final Promise<Msg> rejected = new Promise<Msg>();
+      rejected.deliver(new OverloadedException("batch buffer is full"));
+      return rejected;
+    }
     return p;
   }
 
+  // Sends an event through the priority lane, whatever it looks like.
+  public IPromise<Msg> sendPriorityEvent(final Event event) {
+    final BatchPromise p = new BatchPromise();
+    p.retain(1);
+    priorityBuffer.offer(new Write(event, p));
+    p.seal();
+    flushPriority();
+    return p;
+  }
+
+  public boolean hasPriorityRules() {
+    return ! (priorityStates.isEmpty() && priorityTags.isEmpty());
+  }
+
+  // Does this event belong in the priority lane?
+  public boolean isPriority(final Event event) {
+    if (event.hasState() && priorityStates.contains(event.getState())) {
+      return true;
+    }
+    if (! priorityTags.isEmpty()) {
+      for (int i = 0; i < event.getTagsCount(); i++) {
+        if (priorityTags.contains(event.getTags(i))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Sends everything in the priority lane, unless another thread already
+  // is, in which case it picks up ours too.
+  public void flushPriority() {
+    while (0 < priorityBuffer.size()) {
+      if (! priorityLock.tryLock()) {
+        return;
+      }
+      try {
+        final ArrayList<Write> writes =
+          new ArrayList<Write>(priorityBuffer.size());
+        priorityBuffer.drainTo(writes, Integer.MAX_VALUE);
+        if (dropExpiredEvents.get()) {
+          removeExpired(writes);
+        }
+        prioritySent.add(writes.size());
+        sendSplit(writes);
+        try {
+          client.flush();
+        } catch (IOException e) {
+          // not actually thrown by any implementation
+        }
+      } finally {
+        priorityLock.unlock();
+      }
+      // Loop in case a producer gave up on the lock just before we let go.
+    }
+  }
+
+  // Joins the shared promise for individually sent events, starting a new
+  // one if the last was sealed.
+  public BatchPromise retainOpenPromise() {
+    while (true) {
+      final BatchPromise p = openPromise.get();
+      if (p.retain()) {
+        return p;
+      }
+      openPromise.compareAndSet(p, new BatchPromise());
+    }
+  }
+
+  // Closes the shared promise to new events, so it can complete once the
+  // ones it has are sent.
+  public void sealOpenPromise() {
+    final BatchPromise p = openPromise.get();
+    if (p.pending() == 0 && ! p.isSealed()) {
+      // Nobody's waiting on it yet.
+      return;
+    }
+    if (openPromise.compareAndSet(p, new BatchPromise())) {
+      p.seal();
+    }
+  }
+
+  @Override
+  public boolean sendMessageAndForget(final Msg message) {
+    return client.sendMessageAndForget(message);
+  }
+
+  // Queued like any other event, but with no promise to fulfill. Batches
+  // made up entirely of these are sent fire-and-forget as well.
+  @Override
+  public boolean sendEventAndForget(final Event event) {
+    if (hasPriorityRules() && isPriority(event)) {
+      priorityBuffer.offer(new Write(event, null));
+      flushPriority();
+      return true;
+    }
+    return queue(new Write(event, null));
+  }
+
   @Override
   public IPromise<Msg> sendException(final String service, final Throwable t) {
     return RiemannClient.sendException(this, service, t);
@@ -107,53 +503,637 @@ public class RiemannBatchClient implements IRiemannClient {
   // And this is crazy
   // But take this event
   // And flush queues maybe
-  public void queue(final Write write) {
-    buffer.put(write);
-    if (batchSize <= bufferSize.addAndGet(1)) {
-      flush();
+  //
+  // Returns false if the buffer refused the write.
+  public boolean queue(final Write write) {
+    if (! enqueue(write)) {
+      reject(write);
+      return false;
     }
+    return true;
   }
 
-  // Flushes up to batchSize writes from the queue, and fulfills their
+  // Like queue, but leaves a refused write's promise to the caller.
+  public boolean enqueue(final Write write) {
+    final int size = buffer.offer(write);
+    if (size < 0) {
+      return false;
+    } else if (effectiveBatchSize.get() <= size
+               || maxBatchBytes.get() <= buffer.bytes()) {
+      if (backgroundFlush) {
+        scheduleDrain();
+      } else {
+        flushFull();
+      }
+    } else {
+      scheduleLinger();
+    }
+    return true;
+  }
+
+  // Fails a write the buffer had no room for.
+  public void reject(final Write write) {
+    if (write.promise != null) {
+      write.promise.fail(1, new OverloadedException("batch buffer is full"));
+    }
+  }
+
+  // Is there at least a full batch waiting?
+  public boolean isFull() {
+    return effectiveBatchSize.get() <= buffer.size()
+      || maxBatchBytes.get() <= buffer.bytes();
+  }
+
+  // Is there room in the window for another batch?
+  public boolean hasWindow() {
+    final int max = maxInFlight.get();
+    return max <= 0 || inFlightBatches.get() < max;
+  }
+
+  // The fraction of the window in use; 0 with no limit.
+  public double windowOccupancy() {
+    final int max = maxInFlight.get();
+    return max <= 0 ? 0 : (double) inFlightBatches.get() / max;
+  }
+
+  // A batch was acknowledged, failed, or timed out: adapt to how it went,
+  // and pick up where a full window left off.
+  public void acked(final InFlight batch, final boolean failed) {
+    if (! batch.retrying) {
+      freeSlot(batch, failed);
+    }
+  }
+
+  public void freeSlot(final InFlight batch, final boolean failed) {
+    inFlightBatches.decrementAndGet();
+    adapt(batch, failed);
+    if (isFull()) {
+      scheduleDrain();
+    } else if (0 < buffer.size()) {
+      scheduleLinger();
+    }
+  }
+
+  // Schedules another attempt at a failed batch, if it has retries, time
+  // and budget left. Returns false if the failure should stand.
+  public boolean retry(final InFlight batch) {
+    final int max = maxRetries.get();
+    if (max <= 0) {
+      return false;
+    }
+    if (max <= batch.retries) {
+      retriesExhausted.increment();
+      return false;
+    }
+    if (TimeUnit.MILLISECONDS.toNanos(retryMaxAgeMillis.get())
+        < System.nanoTime() - batch.bornNanos) {
+      retriesTooOld.increment();
+      return false;
+    }
+    if (! takeRetryToken()) {
+      retryBudgetExhausted.increment();
+      return false;
+    }
+
+    final long cap = retryMaxMillis.get();
+    final long backoff = Math.min(cap,
+        retryBaseMillis.get() << Math.min(30, batch.retries));
+    final long delay = backoff / 2
+      + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+    // Settle our books before scheduling: a quick resend may fail and be
+    // back here before schedule() even returns.
+    batch.retries++;
+    if (! batch.retrying) {
+      // Out of the window until it's settled.
+      batch.retrying = true;
+      freeSlot(batch, true);
+    }
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          resend(batch);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed. The slot's already free, so the failure just stands.
+      batch.retries--;
+      retryTokens.addAndGet(100);
+      return false;
+    }
+    return true;
+  }
+
+  public boolean takeRetryToken() {
+    while (true) {
+      final long tokens = retryTokens.get();
+      if (tokens < 100) {
+        return false;
+      }
+      if (retryTokens.compareAndSet(tokens, tokens - 100)) {
+        return true;
+      }
+    }
+  }
+
+  // Every fresh batch earns a fraction of a retry.
+  public void depositRetryToken() {
+    if (maxRetries.get() <= 0) {
+      return;
+    }
+    final long tokens = retryTokens.addAndGet(retryBudgetPercent.get());
+    if (RETRY_BUDGET_MAX * 100 < tokens) {
+      retryTokens.set(RETRY_BUDGET_MAX * 100);
+    }
+  }
+
+  // Sends a failed batch again, less any events which expired meanwhile.
+  public void resend(final InFlight batch) {
+    retried.increment();
+    if (batch.expiries != null && dropExpiredEvents.get()) {
+      batch.removeExpired();
+      if (batch.message.count == 0) {
+        batch.deliver(BatchPromise.EMPTY_ACK);
+        return;
+      }
+    }
+    batch.sentNanos = System.nanoTime();
+    sendEncoded(batch.message, batch);
+    try {
+      client.flush();
+    } catch (IOException e) {
+      // not actually thrown by any implementation
+    }
+  }
+
+  // Feeds one batch's round trip to the moving averages and, if enabled, the
+  // AIMD batch size controller.
+  public void adapt(final InFlight batch, final boolean failed) {
+    final long now = System.nanoTime();
+    final long rtt = Math.max(1, now - batch.sentNanos);
+    if (! failed) {
+      ewma(ackRttNanos, rtt);
+      ewma(ackedEventsPerSecond, batch.events * 1000000000L / rtt);
+    }
+
+    if (! adaptiveBatchSize.get()) {
+      return;
+    }
+
+    int max = Math.max(1, maxBatchSize.get());
+    if (buffer instanceof RingBatchBuffer) {
+      // A ring must be able to fill a batch.
+      max = Math.min(max, ((RingBatchBuffer) buffer).capacity);
+    }
+    final int min = Math.max(1, Math.min(minBatchSize.get(), max));
+    final boolean slow =
+      failed || TimeUnit.MILLISECONDS.toNanos(targetAckMillis.get()) < rtt;
+
+    while (true) {
+      final int size = effectiveBatchSize.get();
+      int next;
+      if (slow) {
+        // Only batches sent since the last cut may cut again.
+        final long last = lastDecreaseNanos.get();
+        if (batch.sentNanos - last < 0
+            || ! lastDecreaseNanos.compareAndSet(last, now)) {
+          next = size;
+        } else {
+          next = size / 2;
+        }
+      } else if (size <= batch.events) {
+        // A full batch went through quickly; try a bigger one.
+        next = size + 1;
+      } else {
+        // Partial batches don't tell us whether bigger ones would help.
+        next = size;
+      }
+      next = Math.max(min, Math.min(max, next));
+      if (next == size || effectiveBatchSize.compareAndSet(size, next)) {
+        return;
+      }
+    }
+  }
+
+  // Folds a sample into a moving average, weighting it 1/8.
+  public static void ewma(final AtomicLong average, final long sample) {
+    final long prev = average.get();
+    average.set(prev == 0 ? sample : prev + (sample - prev) / 8);
+  }
+
+  // Makes sure the background flusher will look at the buffer.
+  public void scheduleDrain() {
+    if (drainScheduled.get() || ! drainScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      scheduler.execute(drainTask);
+    } catch (RejectedExecutionException e) {
+      drainScheduled.set(false);
+    }
+  }
+
+  // Sends full batches until there are none left or the window is full,
+  // unless another thread is already draining, in which case it picks up ours
+  // too.
+  public void flushFull() {
+    while (isFull() && hasWindow()) {
+      if (! drainLock.tryLock()) {
+        return;
+      }
+      int drained;
+      try {
+        do {
+          drained = flush2();
+        } while (0 < drained && isFull() && hasWindow());
+      } finally {
+        drainLock.unlock();
+      }
+      if (drained == 0) {
+        // The next write is claimed but not yet published. Its producer may
+        // not see a full batch when it's done, so come back for it.
+        scheduleDrain();
+        return;
+      }
+      // Loop in case a producer gave up on the lock just before we let go.
+    }
+  }
+
+  // Makes sure a linger flush is pending, if lingering is enabled.
+  public void scheduleLinger() {
+    final long linger = lingerMillis.get();
+    if (linger <= 0
+        || lingerScheduled.get()
+        || ! lingerScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      scheduler.schedule(lingerFlush, linger, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      lingerScheduled.set(false);
+    }
+  }
+
+  // Flushes up to effectiveBatchSize writes from the queue, and fulfills their
   // promises. Should never throw; any exceptions go to the corresponding
   // promises.
   public int flush2() {
-    final int maxWrites = Math.min(batchSize, bufferSize.get());
+    drainLock.lock();
+    try {
+      return drain();
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  // flush2, for the thread holding drainLock.
+  public int drain() {
+    // Anything urgent goes ahead of the batch.
+    flushPriority();
+    sealOpenPromise();
+    final int maxWrites =
+      Math.max(0, Math.min(effectiveBatchSize.get(), buffer.size()));
 
     // Allocate space for writes
     final ArrayList<Write> writes = new ArrayList<Write>(maxWrites);
 
     // Suck down elements from queue
-    buffer.drainTo(writes, maxWrites);
+    final int drained = buffer.drainTo(writes, maxWrites);
+    if (dropExpiredEvents.get()) {
+      removeExpired(writes);
+    }
+    sendSplit(writes);
 
-    // Update count
-    bufferSize.addAndGet(-1 * writes.size());
+    try {
+      client.flush();
+    } catch (IOException e) {
+      // not actually thrown by any implementation
+    }
 
-    // Build message
-    final Msg.Builder message = Msg.newBuilder();
-    for (Write write : writes) {
-      message.addEvents(write.event);
+    // Anything left behind still has to go out on time.
+    if (0 < buffer.size()) {
+      scheduleLinger();
+    }
+    return drained;
+  }
+
+  // Removes writes whose ttl has run out, releasing their promises.
+  public void removeExpired(final List<Write> writes) {
+    long now = 0;
+    int kept = 0;
+    for (int i = 0; i < writes.size(); i++) {
+      final Write write = writes.get(i);
+      if (write.expiresAt != Long.MAX_VALUE) {
+        if (now == 0) {
+          now = System.currentTimeMillis();
+        }
+        if (write.expiresAt <= now) {
+          expired.increment();
+          if (write.promise != null) {
+            write.promise.release(1);
+          }
+          continue;
+        }
+      }
+      writes.set(kept++, write);
+    }
+    writes.subList(kept, writes.size()).clear();
+  }
+
+  // When an event goes stale, in ms since the epoch, or Long.MAX_VALUE if it
+  // has no ttl. Events without a time start counting now.
+  public static long expiresAt(final Event event) {
+    if (! event.hasTtl()) {
+      return Long.MAX_VALUE;
+    }
+    final long time;
+    if (event.hasTimeMicros()) {
+      time = event.getTimeMicros() / 1000;
+    } else if (event.hasTime()) {
+      time = event.getTime() * 1000;
+    } else {
+      time = System.currentTimeMillis();
+    }
+    return time + (long) (event.getTtl() * 1000);
+  }
+
+  // expiresAt(Event) for an event from the journal, encoded as a Msg `events`
+  // field.
+  public static long expiresAt(final byte[] encoded) {
+    try {
+      final Msg m = Msg.parseFrom(encoded);
+      if (m.getEventsCount() == 0) {
+        return Long.MAX_VALUE;
+      }
+      return expiresAt(m.getEvents(0));
+    } catch (InvalidProtocolBufferException e) {
+      // Let the server make of it what it will.
+      return Long.MAX_VALUE;
+    }
+  }
+
+  // Sends writes in messages of at most maxBatchBytes.
+  public void sendSplit(final List<Write> writes) {
+    final int maxBytes = maxBatchBytes.get();
+    int start = 0;
+    int messageBytes = 0;
+    for (int i = 0; i < writes.size(); i++) {
+      final int size = writes.get(i).size;
+      if (start < i && maxBytes < messageBytes + size) {
+        send(writes.subList(start, i));
+        start = i;
+        messageBytes = 0;
+      }
+      messageBytes += size;
     }
+    if (start < writes.size()) {
+      send(writes.subList(start, writes.size()));
+    }
+  }
 
-    // Send message
-    final IPromise<Msg> clientPromise = client.sendMessage(message.build());
+  // Sends some writes as a single message.
+  public void send(final List<Write> writes) {
+    // Splice message
+    final int n = writes.size();
+    final byte[][] chunks = new byte[n][];
+    int size = 0;
+    boolean promised = false;
+    for (int i = 0; i < n; i++) {
+      final Write write = writes.get(i);
+      chunks[i] = write.encoded;
+      size += write.size;
+      promised = promised || write.promise != null;
+    }
+    final EncodedMsg message = new EncodedMsg(chunks, n, size);
+
+    if (journal != null && isDown()) {
+      // No sense trying; keep it for later. Anyone waiting hears that it
+      // hasn't been sent yet.
+      spill(message);
+      final Promise<Msg> journaled = new Promise<Msg>();
+      journaled.deliver(new JournaledException(
+            n + " events journaled while disconnected, to be replayed"));
+      settle(writes, journaled);
+    } else if (! promised) {
+      // Nobody is waiting on this batch.
+      if (! sendEncodedAndForget(message) && journal != null) {
+        spill(message);
+      }
+    } else {
+      // Send message, taking a slot in the window until it's answered
+      inFlightBatches.incrementAndGet();
+      depositRetryToken();
+      final InFlight batch = new InFlight(message);
+      for (int i = 0; i < n; i++) {
+        if (writes.get(i).replay) {
+          batch.replays++;
+        }
+      }
+      if (0 < maxRetries.get() && dropExpiredEvents.get()) {
+        batch.expiries(writes);
+      }
+      final IPromise<Msg> clientPromise = sendEncoded(message, batch);
+      settle(writes, clientPromise);
+    }
+  }
 
-    // And hook up all the response promises
+  // Hooks up each run of writes sharing a batch promise to the message's
+  // promise, if any, then lets them go.
+  public void settle(final List<Write> writes, final IPromise<Msg> clientPromise) {
+    BatchPromise run = null;
+    int runLength = 0;
     for (Write write : writes) {
-      write.promise.attach(clientPromise);
+      if (write.promise != run) {
+        if (run != null) {
+          run.release(runLength);
+        }
+        run = write.promise;
+        runLength = 0;
+        if (run != null && clientPromise != null) {
+          run.attach(clientPromise);
+        }
+      }
+      runLength++;
+    }
+    if (run != null) {
+      run.release(runLength);
+    }
+  }
+
+  // Appends a message's events to the journal, and makes sure they'll be
+  // replayed.
+  public void spill(final EncodedMsg message) {
+    final Journal j = journal;
+    if (j == null) {
+      return;
+    }
+    for (int i = 0; i < message.count; i++) {
+      if (j.append(message.chunks[i])) {
+        journaled.increment();
+      }
+    }
+    scheduleReplay();
+  }
+
+  // Spills a message from a thread which mustn't wait on the disk, like a
+  // Netty event loop: rolling the journal creates, sizes and maps a file, so
+  // that happens on the flusher instead.
+  public void spillLater(final EncodedMsg message) {
+    if (journal == null) {
+      return;
+    }
+    spills.add(message);
+    try {
+      scheduler.execute(spillTask);
+    } catch (RejectedExecutionException e) {
+      // Closing; see close().
+      drainSpills();
+    }
+  }
+
+  public void drainSpills() {
+    EncodedMsg message;
+    while ((message = spills.poll()) != null) {
+      spill(message);
+    }
+  }
+
+  // Whether there's no point sending anything. TCP transports know for sure,
+  // from their ConnectionHealth and CircuitBreaker.
+  public boolean isDown() {
+    if (client instanceof RiemannClient) {
+      final Transport t = ((RiemannClient) client).transport;
+      if (t instanceof TcpTransport) {
+        final TcpTransport tcp = (TcpTransport) t;
+        return ! tcp.health.isUsable() || tcp.breaker.isOpen();
+      }
+    }
+    return ! client.isConnected();
+  }
+
+  public void scheduleReplay() {
+    if (replayScheduled.get() || ! replayScheduled.compareAndSet(false, true)) {
+      return;
     }
 
     try {
-      client.flush();
-    } catch (IOException e) {
-      // not actually thrown by any implementation
+      scheduler.schedule(replayTask, REPLAY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      replayScheduled.set(false);
+    }
+  }
+
+  // Sends one tick's worth of journaled events, if we're connected and the
+  // window has room, and comes back for more while any are left.
+  public void replay() {
+    final Journal j = journal;
+    if (j == null || j.isEmpty()) {
+      return;
+    }
+
+    if (! isDown() && hasWindow()) {
+      // A batch at a time, while the window has room; whatever doesn't fit
+      // stays in the journal for the next tick.
+      int budget = (int) Math.max(1,
+          replayEventsPerSecond.get() * REPLAY_TICK_MILLIS / 1000);
+      final int size = effectiveBatchSize.get();
+      final List<byte[]> records = new ArrayList<byte[]>(size);
+      final ArrayList<Write> writes = new ArrayList<Write>(size);
+      boolean sent = false;
+      while (0 < budget && hasWindow()) {
+        records.clear();
+        final int n = j.read(records, Math.min(size, budget));
+        if (n == 0) {
+          break;
+        }
+        budget -= n;
+
+        // Replays are promised, so failures come back to the journal.
+        final BatchPromise p = new BatchPromise();
+        p.retain(n);
+        for (byte[] record : records) {
+          writes.add(new Write(record, p));
+        }
+        if (dropExpiredEvents.get()) {
+          removeExpired(writes);
+        }
+        sendSplit(writes);
+        writes.clear();
+        p.seal();
+        sent = true;
+      }
+      if (sent) {
+        try {
+          client.flush();
+        } catch (IOException e) {
+          // not actually thrown by any implementation
+        }
+      }
+    }
+
+    // Replays which fail are spilled, and schedule their own replay.
+    if (! j.isEmpty()) {
+      scheduleReplay();
     }
-    return writes.size();
   }
 
+  // Sends an encoded message through the underlying client, delivering the
+  // raw response to `raw` as well. Clients other than RiemannClient only take
+  // Msgs, and can't tell us when they're answered.
+  public IPromise<Msg> sendEncoded(final EncodedMsg message,
+                                   final Promise<Msg> raw) {
+    if (client instanceof RiemannClient) {
+      return ((RiemannClient) client).sendEncoded(message, raw);
+    }
+
+    try {
+      final IPromise<Msg> p = client.sendMessage(message.toMsg());
+      raw.deliver(null);
+      return p;
+    } catch (InvalidProtocolBufferException e) {
+      raw.deliver(e);
+      return raw;
+    }
+  }
+
+  public boolean sendEncodedAndForget(final EncodedMsg message) {
+    if (client instanceof RiemannClient) {
+      return ((RiemannClient) client).sendEncodedAndForget(message);
+    }
+
+    try {
+      return client.sendMessageAndForget(message.toMsg());
+    } catch (InvalidProtocolBufferException e) {
+      return false;
+    }
+  }
+
+  // Like flush(), but stops once the window is full.
+  public void flushWithinWindow() {
+    drainLock.lock();
+    try {
+      int batches = buffer.size() / effectiveBatchSize.get() + 1;
+      while (0 < batches-- && hasWindow() && 0 < drain()) {
+      }
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
+  // Flushes everything buffered as of this call, a batch at a time.
   @Override
   public void flush() {
-    flush2();
+    drainLock.lock();
+    try {
+      int batches = buffer.size() / effectiveBatchSize.get() + 1;
+      while (0 < batches-- && 0 < drain()) {
+      }
+    } finally {
+      drainLock.unlock();
+    }
   }
 
   @Override
@@ -171,7 +1151,19 @@ public class RiemannBatchClient implements IRiemannClient {
     try {
       flush();
     } finally {
-      client.close();
+      try {
+        client.close();
+      } finally {
+        // Nothing left to linger, retry or replay for. Batches which failed
+        // as the client closed go to disk, for the next journal on this
+        // directory.
+        scheduler.shutdownNow();
+        drainSpills();
+        final Journal j = journal;
+        if (j != null) {
+          j.close();
+        }
+      }
     }
   }
 
@@ -186,14 +1178,130 @@ public class RiemannBatchClient implements IRiemannClient {
     return client;
   }
 
-  // Combines an Event with a promise to fulfill when received.
+  // A batch's raw response promise. Frees its slot in the window the first
+  // time it's delivered.
+  // If the batch is retried, the same promise is handed to each attempt, and
+  // only the last one's outcome is delivered.
+  public class InFlight extends Promise<Msg> {
+    public volatile EncodedMsg message;
+    // When each event expires, if any has a ttl and we're dropping expired
+    // events on retry.
+    public volatile long[] expiries;
+    public volatile int events;
+    public final long bornNanos = System.nanoTime();
+    public volatile long sentNanos = bornNanos;
+    public volatile int retries = 0;
+    // Whether it has given up its slot in the window to retry.
+    public volatile boolean retrying = false;
+    // Events read back from the journal, counted as replayed once answered.
+    public volatile int replays = 0;
+
+    public InFlight(final EncodedMsg message) {
+      this.message = message;
+      this.events = message.count;
+    }
+
+    public void expiries(final List<Write> writes) {
+      long[] e = null;
+      for (int i = 0; i < writes.size(); i++) {
+        final long t = writes.get(i).expiresAt;
+        if (t != Long.MAX_VALUE) {
+          if (e == null) {
+            e = new long[writes.size()];
+            Arrays.fill(e, Long.MAX_VALUE);
+          }
+          e[i] = t;
+        }
+      }
+      this.expiries = e;
+    }
+
+    public void removeExpired() {
+      final EncodedMsg m = message;
+      final long[] e = expiries;
+      final long now = System.currentTimeMillis();
+      final byte[][] chunks = new byte[m.count][];
+      final long[] kept = new long[m.count];
+      int n = 0;
+      int size = 0;
+      for (int i = 0; i < m.count; i++) {
+        if (e[i] <= now) {
+          expired.increment();
+          continue;
+        }
+        chunks[n] = m.chunks[i];
+        kept[n] = e[i];
+        size += m.chunks[i].length;
+        n++;
+      }
+      if (n < m.count) {
+        this.message = new EncodedMsg(chunks, n, size);
+        this.expiries = kept;
+        this.events = n;
+      }
+    }
+
+    @Override
+    public void deliver(final Object value) {
+      if (latch.getCount() == 0) {
+        return;
+      }
+      if (value instanceof IOException && retry(this)) {
+        // Not over yet.
+        return;
+      }
+      if (0 < latch.getCount() && ref.compareAndSet(latch, value)) {
+        latch.countDown();
+        if (value instanceof IOException) {
+          // Couldn't get it there; try again later.
+          spillLater(message);
+        } else if (0 < replays && ! (value instanceof Throwable)) {
+          replayed.add(Math.min(replays, events));
+        }
+        acked(this, value instanceof Throwable
+                    || (value instanceof Msg
+                        && ((Msg) value).hasOk()
+                        && ! ((Msg) value).getOk()));
+      }
+    }
+  }
+
+  // Combines an encoded Event with a promise to fulfill when received.
   public class Write {
-    public final Event event;
-    public final ChainPromise<Msg> promise;
+    // The event as a serialized Msg `events` field.
+    public final byte[] encoded;
+    public final BatchPromise promise;
+    // Bytes this event takes up in a Msg.
+    public final int size;
+    // For buffers which key writes by event.
+    public final String host;
+    public final String service;
+    // See expiresAt(Event).
+    public final long expiresAt;
+    // Read back from the journal.
+    public final boolean replay;
+
+    // An event read back from the journal, already encoded. Its deadline is
+    // only worth decoding if we're going to drop it.
+    public Write(final byte[] encoded, final BatchPromise promise) {
+      this.encoded = encoded;
+      this.promise = promise;
+      this.size = encoded.length;
+      this.host = "";
+      this.service = "";
+      this.expiresAt = dropExpiredEvents.get()
+        ? expiresAt(encoded) : Long.MAX_VALUE;
+      this.replay = true;
+    }
 
-    public Write(final Event event, final ChainPromise promise) {
-      this.event = event;
+    public Write(final Event event, final BatchPromise promise) {
+      this.encoded = EncodedMsg.encodeEvent(event);
+      this.host = event.getHost();
+      this.service = event.getService();
+      this.expiresAt = expiresAt(event);
       this.promise = promise;
+      this.size = encoded.length;
+      this.replay = false;
     }
   }
 }
@@ -6,6 +6,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.riemann.riemann.Proto.Event;
 import io.riemann.riemann.Proto.Query;
 import io.riemann.riemann.Proto.Msg;
@@ -131,7 +132,12 @@ public class RiemannClient implements IRiemannClient {
   // Send and receive messages
   @Override
   public IPromise<Msg> sendMessage(final Msg m) {
-    return transport.sendMessage(m).map(validate);
+    final IPromise<Msg> p = transport.sendMessage(m);
+    if (p == CircuitBreaker.REJECTED) {
+      // Already failed; don't allocate a mapping for it.
+      return p;
+    }
+    return p.map(validate);
   }
 
   @Override
@@ -149,6 +155,61 @@ public class RiemannClient implements IRiemannClient {
     return sendMessage(Msg.newBuilder().addAllEvents(events).build());
   }
 
+  @Override
+  public boolean sendMessageAndForget(final Msg m) {
+    if (transport instanceof TcpTransport) {
+      return ((TcpTransport) transport).sendMessageAndForget(m);
+    }
+
+    // Other transports have no cheaper path; just drop the promise.
+    transport.sendMessage(m);
+    return true;
+  }
+
+  @Override
+  public boolean sendEventAndForget(final Event event) {
+    return sendMessageAndForget(Msg.newBuilder().addEvents(event).build());
+  }
+
+  // Send an already serialized message. TCP writes the bytes as they are;
+  // other transports get the Msg parsed back out.
+  public IPromise<Msg> sendEncoded(final EncodedMsg m) {
+    return sendEncoded(m, new Promise<Msg>());
+  }
+
+  // Like sendEncoded(m), but also delivers the raw response (or failure) to
+  // the given promise, so callers can tell when the server has answered.
+  // Transports without acknowledgements deliver null to it as soon as the
+  // message is handed off.
+  public IPromise<Msg> sendEncoded(final EncodedMsg m, final Promise<Msg> raw) {
+    if (transport instanceof TcpTransport) {
+      return ((TcpTransport) transport)
+        .sendEncoded(m, raw)
+        .map(validate);
+    }
+
+    try {
+      final IPromise<Msg> p = sendMessage(m.toMsg());
+      raw.deliver(null);
+      return p;
+    } catch (InvalidProtocolBufferException e) {
+      raw.deliver(e);
+      return raw;
+    }
+  }
+
+  public boolean sendEncodedAndForget(final EncodedMsg m) {
+    if (transport instanceof TcpTransport) {
+      return ((TcpTransport) transport).sendEncodedAndForget(m);
+    }
+
+    try {
+      return sendMessageAndForget(m.toMsg());
+    } catch (InvalidProtocolBufferException e) {
+      return false;
+    }
+  }
+
   @Override
   public IPromise<Msg> sendException(final String service, final Throwable t) {
     return RiemannClient.sendException(this, service, t);
@@ -0,0 +1,146 @@
+package io.riemann.riemann.client;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// A bounded, preallocated multi-producer/single-consumer ring, after the
+// LMAX Disruptor. Producers claim a sequence number with a CAS on the tail,
+// fill the slot, then publish it by storing its sequence number in the
+// slot's marker; the consumer takes published slots in order and releases
+// them by advancing the head. There are no per-write nodes and no shared
+// counters beyond the tail itself.
+//
+// What a producer does when the ring is full is up to its WaitStrategy;
+// onFull, if set, is run first, so the consumer can be woken.
+public class RingBatchBuffer implements BatchBuffer {
+  public enum WaitStrategy {
+    // Spin until a slot frees up. Lowest latency; burns a core.
+    BUSY_SPIN,
+    // Yield the CPU between attempts.
+    YIELD,
+    // Spin, then yield, then sleep in short parks. Gentle on the CPU.
+    PARK,
+    // Refuse the write at once.
+    FAIL;
+
+    // Called after a failed attempt; returns false to give up.
+    public boolean idle(final int attempt) {
+      switch (this) {
+        case BUSY_SPIN:
+          return true;
+        case YIELD:
+          Thread.yield();
+          return true;
+        case PARK:
+          if (100 < attempt) {
+            LockSupport.parkNanos(PARK_NANOS);
+          } else if (50 < attempt) {
+            Thread.yield();
+          }
+          return true;
+        default:
+          return false;
+      }
+    }
+  }
+
+  public static final long PARK_NANOS = 50000;
+
+  public final int capacity;
+  public final WaitStrategy waitStrategy;
+  private final int mask;
+  private final RiemannBatchClient.Write[] slots;
+  // The sequence number last published in each slot.
+  private final AtomicLongArray published;
+  // Next sequence to claim, and next sequence to consume.
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+  private final LongAdder bytes = new LongAdder();
+  public volatile Runnable onFull;
+
+  public RingBatchBuffer(final int capacity, final WaitStrategy waitStrategy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    int n = 1;
+    while (n < capacity) {
+      n <<= 1;
+    }
+    this.capacity = n;
+    this.waitStrategy = waitStrategy;
+    this.mask = n - 1;
+    this.slots = new RiemannBatchClient.Write[n];
+    this.published = new AtomicLongArray(n);
+    for (int i = 0; i < n; i++) {
+      published.set(i, -1);
+    }
+  }
+
+  @Override
+  public int offer(final RiemannBatchClient.Write write) {
+    long seq;
+    int attempt = 0;
+    while (true) {
+      seq = tail.get();
+      if (seq - head.get() < capacity) {
+        if (tail.compareAndSet(seq, seq + 1)) {
+          break;
+        }
+      } else {
+        if (attempt == 0 && onFull != null) {
+          onFull.run();
+        }
+        if (! waitStrategy.idle(attempt++)) {
+          return -1;
+        }
+      }
+    }
+
+    final int i = (int) (seq & mask);
+    slots[i] = write;
+    bytes.add(write.size);
+    // Ordered after the slot write, which the consumer reads only once it
+    // sees this.
+    published.lazySet(i, seq);
+    return (int) (seq + 1 - head.get());
+  }
+
+  // Only ever called by one thread at a time.
+  @Override
+  public int drainTo(final List<RiemannBatchClient.Write> into, final int max) {
+    long h = head.get();
+    int n = 0;
+    long drained = 0;
+    while (n < max) {
+      final int i = (int) (h & mask);
+      if (published.get(i) != h) {
+        // Empty, or claimed but not yet published.
+        break;
+      }
+      final RiemannBatchClient.Write write = slots[i];
+      slots[i] = null;
+      into.add(write);
+      drained += write.size;
+      h++;
+      n++;
+    }
+    if (0 < n) {
+      bytes.add(-drained);
+      head.lazySet(h);
+    }
+    return n;
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  @Override
+  public long bytes() {
+    return bytes.sum();
+  }
+}
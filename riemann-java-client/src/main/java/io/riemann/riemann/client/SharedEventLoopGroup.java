@@ -0,0 +1,71 @@
+package io.riemann.riemann.client;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+// An EventLoopGroup several transports can run on, so a process with many
+// clients needn't spin up I/O threads for each. Transports retain the group
+// when they connect and release it when they close; a group we created is
+// shut down when the last transport lets go, and the next retain() brings up
+// a fresh one. Groups owned by someone else, e.g. the application's own
+// Netty server, are never shut down here.
+public class SharedEventLoopGroup {
+  public final IoMode ioMode;
+  public final int threads;
+  public final boolean external;
+
+  private EventLoopGroup group;
+  private int refs = 0;
+
+  // A group of our own, created on first retain(). 0 threads picks Netty's
+  // default.
+  public SharedEventLoopGroup(final IoMode ioMode, final int threads) {
+    this.ioMode = ioMode.resolve();
+    this.threads = threads;
+    this.external = false;
+  }
+
+  // Wraps a group owned by the caller. Channels are created with the
+  // matching transport, so it must be an NIO, epoll or io_uring group.
+  public SharedEventLoopGroup(final EventLoopGroup group) {
+    final IoMode mode = IoMode.of(group);
+    if (mode == null) {
+      throw new IllegalArgumentException(
+          "unsupported event loop group: " + group.getClass().getName());
+    }
+    this.ioMode = mode;
+    this.threads = 0;
+    this.external = true;
+    this.group = group;
+  }
+
+  public synchronized int refCount() {
+    return refs;
+  }
+
+  // Takes a reference and returns the group to use.
+  public synchronized EventLoopGroup retain() {
+    if (group == null) {
+      group = ioMode.newGroup(threads);
+    }
+    refs++;
+    return group;
+  }
+
+  // Drops a reference. Returns a future which completes once the group has
+  // shut down, or immediately if it stays up.
+  public synchronized Future<?> release() {
+    if (refs == 0) {
+      throw new IllegalStateException("event loop group released too many times");
+    }
+    refs--;
+    if (0 < refs || external) {
+      return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+    }
+
+    final EventLoopGroup g = group;
+    group = null;
+    return g.shutdownGracefully();
+  }
+}
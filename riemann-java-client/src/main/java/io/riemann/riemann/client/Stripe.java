@@ -0,0 +1,18 @@
+package io.riemann.riemann.client;
+
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+
+// One of a TcpTransport's connections: every channel it has opened,
+// reconnections included, and the handler of the latest one. TcpHandler
+// keeps that current as its channel comes and goes, so picking where to
+// write doesn't walk the group or the pipeline.
+public class Stripe extends DefaultChannelGroup {
+  public final AtomicReference<TcpHandler> active =
+    new AtomicReference<TcpHandler>();
+
+  public Stripe() {
+    super(GlobalEventExecutor.INSTANCE);
+  }
+}
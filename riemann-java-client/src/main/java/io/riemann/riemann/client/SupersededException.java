@@ -0,0 +1,9 @@
+package io.riemann.riemann.client;
+
+// Fails an event which a CoalescingBatchBuffer dropped in favor of a newer
+// one with the same host and service, before either was sent.
+public class SupersededException extends java.io.IOException {
+  public SupersededException(final String msg) {
+    super(msg);
+  }
+}
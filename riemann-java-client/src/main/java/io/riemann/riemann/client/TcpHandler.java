@@ -1,34 +1,205 @@
 package io.riemann.riemann.client;
 
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.CombinedChannelDuplexHandler;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.riemann.riemann.Proto.Msg;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TcpHandler
     extends CombinedChannelDuplexHandler<TcpHandler.Inbound, TcpHandler.Outbound> {
 
-  public final WriteQueue queue = new WriteQueue();
+  // Resolution of write deadlines, and how far ahead the wheel reaches
+  // before parking deadlines in its last bucket.
+  public static final long TIMEOUT_TICK_MILLIS = 100;
+  public static final int TIMEOUT_TICKS_PER_WHEEL = 512;
+
+  // Only touched from the channel's event loop.
+  public final AckQueue queue = new AckQueue();
+  public final TimeoutWheel timeouts;
+  public int consecutiveTimeouts = 0;
+  public ScheduledFuture<?> timeoutTicker;
+
   public final ExceptionReporter exceptionReporter;
+  public final AckStats stats;
+  // Default time, in ms, for the server to acknowledge a write; 0 disables.
+  public final long writeTimeoutMillis;
+  // Close the connection after this many writes in a row time out; 0
+  // disables.
+  public final int maxConsecutiveTimeouts;
+  // Writes handed to this channel which have not yet been acknowledged or
+  // failed. Incremented by the transport, decremented here as each is
+  // answered, refused or failed.
+  public final AtomicInteger outstanding = new AtomicInteger();
+  // The stripe this handler's channel belongs to, if any, and the channel.
+  public final Stripe stripe;
+  public volatile Channel channel;
   // The last error used to fulfill outstanding promises.
   public volatile IOException lastError =
     new IOException("Channel closed.");
 
+  // Writes are queued for acknowledgement as they pass through, so a write
+  // which then fails leaves the queue out of step with the wire. Shared by
+  // every write on this channel.
+  public final ChannelFutureListener writeFailureListener =
+    new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) {
+        if (! future.isSuccess()) {
+          fail(new IOException("Write failed.", future.cause()));
+          future.channel().close();
+        }
+      }
+    };
+
+  // Checks writes whose deadline bucket has come up.
+  public final TimeoutWheel.Callback expirer = new TimeoutWheel.Callback() {
+    @Override
+    public void due(final long seq, final long now) {
+      if (! queue.isOutstanding(seq)) {
+        return;
+      }
+      final long deadline = queue.deadline(seq);
+      if (0 < deadline - now) {
+        timeouts.add(seq, deadline);
+        return;
+      }
+      // Each id is in the wheel at most once, so this can't double count.
+      // Count first, so stats are current by the time the promise fails.
+      stats.timeouts.increment();
+      consecutiveTimeouts++;
+      queue.expire(seq, new ResponseTimeoutException(
+            "no response within the write timeout"));
+    }
+  };
+
   public TcpHandler(final ExceptionReporter exceptionReporter) {
+    this(exceptionReporter, new AckStats(), 0, 0);
+  }
+
+  public TcpHandler(final ExceptionReporter exceptionReporter,
+                    final AckStats stats,
+                    final long writeTimeoutMillis,
+                    final int maxConsecutiveTimeouts) {
+    this(exceptionReporter, stats, writeTimeoutMillis, maxConsecutiveTimeouts,
+         null);
+  }
+
+  public TcpHandler(final ExceptionReporter exceptionReporter,
+                    final AckStats stats,
+                    final long writeTimeoutMillis,
+                    final int maxConsecutiveTimeouts,
+                    final Stripe stripe) {
+    this.stripe = stripe;
     this.exceptionReporter = exceptionReporter;
+    this.stats = stats;
+    this.writeTimeoutMillis = writeTimeoutMillis;
+    this.maxConsecutiveTimeouts = maxConsecutiveTimeouts;
+    this.timeouts = new TimeoutWheel(
+        TimeUnit.MILLISECONDS.toNanos(TIMEOUT_TICK_MILLIS),
+        TIMEOUT_TICKS_PER_WHEEL,
+        System.nanoTime());
     init(new Inbound(), new Outbound());
   }
 
+  // Fails everything outstanding on this channel.
+  public void fail(final Throwable cause) {
+    final int cleared = queue.close(cause);
+    outstanding.addAndGet(-cleared);
+    stats.failed.add(cleared);
+  }
+
+  // Expires overdue writes, and recycles the connection if the server seems
+  // to have stopped answering altogether.
+  public void tick(final ChannelHandlerContext ctx) {
+    timeouts.advance(System.nanoTime(), expirer);
+    if (0 < maxConsecutiveTimeouts && maxConsecutiveTimeouts <= consecutiveTimeouts) {
+      fail(new ResponseTimeoutException(
+            consecutiveTimeouts + " consecutive writes timed out; reconnecting"));
+      ctx.channel().close();
+    }
+  }
+
+  // Starts the one ticker per channel which drives every write deadline on
+  // it, unless it's already running or the channel is gone.
+  public void startTicker(final ChannelHandlerContext ctx) {
+    if (timeoutTicker != null || ! ctx.channel().isActive()) {
+      return;
+    }
+    timeoutTicker = ctx.executor().scheduleAtFixedRate(
+        new Runnable() {
+          @Override
+          public void run() {
+            tick(ctx);
+          }
+        }, TIMEOUT_TICK_MILLIS, TIMEOUT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
   public class Inbound extends SimpleChannelInboundHandler<Msg> {
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Msg msg) {
+      if (queue.isEmpty()) {
+        // Nothing was waiting on this response.
+        return;
+      }
+
       // When messages are received, deliver them to the next queued promise.
-      queue.take().deliver(msg);
+      final long latency = System.nanoTime() - queue.peekSentAt();
+      final boolean expired = queue.peekExpired();
+      final Promise<Msg> promise = queue.take();
+      outstanding.decrementAndGet();
+      stats.recordAck(latency, msg.hasOk() && !msg.getOk());
+      if (! expired) {
+        consecutiveTimeouts = 0;
+      }
+      if (promise != null) {
+        promise.deliver(msg);
+      }
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+      // Netty wakes whoever waits on a connect before channelActive gets
+      // here, so the stripe learns of each new channel up front; writers
+      // check that it's active.
+      channel = ctx.channel();
+      if (stripe != null) {
+        stripe.active.set(TcpHandler.this);
+      }
+      super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+      // With no default timeout, nothing can expire until a write asks
+      // for a deadline of its own.
+      if (0 < writeTimeoutMillis) {
+        startTicker(ctx);
+      }
+      super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      if (stripe != null) {
+        stripe.active.compareAndSet(TcpHandler.this, null);
+      }
+      if (timeoutTicker != null) {
+        timeoutTicker.cancel(false);
+        timeoutTicker = null;
+      }
+
+      // Nothing more will be acknowledged on this channel.
+      fail(lastError);
+      super.channelInactive(ctx);
     }
 
     @Override
@@ -40,7 +211,7 @@ public class TcpHandler
         // Oh well
       }
 
-      queue.close(cause);
+      fail(cause);
       ctx.channel().close();
       super.exceptionCaught(ctx, cause);
     }
@@ -50,24 +221,47 @@ public class TcpHandler
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, final ChannelPromise channelPromise)
         throws Exception {
-      // Destructure the write
-      final Write write = (Write) msg;
-      final Promise<Msg> promise = write.promise;
-
-      channelPromise.addListener(
-          new GenericFutureListener<Future<? super Void>>() {
-            @Override
-            public void operationComplete(Future<? super Void> future) throws Exception {
-              if (future.isSuccess()) {
-                queue.put(promise);
-              } else if (future.cause() != null) {
-                promise.deliver(new IOException("Write failed.", future.cause()));
-              } else {
-                promise.deliver(new IOException("Write failed."));
-              }
-            }
-          });
-      super.write(ctx, ((Write) msg).message, channelPromise);
+      // Destructure the write. A bare Msg or EncodedMsg is fire-and-forget:
+      // it takes its place in the queue, but with no promise to fulfill.
+      final Promise<Msg> promise;
+      final Object message;
+      long timeout = writeTimeoutMillis;
+      if (msg instanceof Write) {
+        promise = ((Write) msg).promise;
+        message = ((Write) msg).message;
+        if (((Write) msg).timeoutMillis != Write.DEFAULT_TIMEOUT) {
+          timeout = ((Write) msg).timeoutMillis;
+        }
+      } else {
+        promise = null;
+        message = msg;
+      }
+
+      final long now = System.nanoTime();
+      long deadline = AckQueue.NO_DEADLINE;
+      if (0 < timeout) {
+        deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (deadline == AckQueue.NO_DEADLINE) {
+          deadline++;
+        }
+      }
+
+      final long seq = queue.nextSeq();
+      if (! queue.put(promise, now, deadline)) {
+        // Refused; it'll never be acknowledged.
+        outstanding.decrementAndGet();
+        stats.failed.increment();
+      } else if (deadline != AckQueue.NO_DEADLINE) {
+        timeouts.add(seq, deadline);
+        startTicker(ctx);
+      }
+
+      // Fire-and-forget writes use the void promise; their failures arrive
+      // at exceptionCaught instead.
+      if (! channelPromise.isVoid()) {
+        channelPromise.addListener(writeFailureListener);
+      }
+      super.write(ctx, message, channelPromise);
     }
   }
 }
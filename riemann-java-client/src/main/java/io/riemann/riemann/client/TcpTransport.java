@@ -4,25 +4,26 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.codec.protobuf.ProtobufDecoder;
-import io.netty.handler.codec.protobuf.ProtobufEncoder;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import io.riemann.riemann.Proto.Msg;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,10 +42,8 @@ public class TcpTransport implements AsynchronousTransport {
   // Shared pipeline handlers
   public static final ProtobufDecoder pbDecoder =
     new ProtobufDecoder(Msg.getDefaultInstance());
-  public static final ProtobufEncoder pbEncoder =
-    new ProtobufEncoder();
-  public static final LengthFieldPrepender frameEncoder =
-    new LengthFieldPrepender(4);
+  public static final MsgEncoder msgEncoder =
+    new MsgEncoder(true);
 
   public static final int DEFAULT_PORT = 5555;
 
@@ -56,21 +55,85 @@ public class TcpTransport implements AsynchronousTransport {
       DISCONNECTING
   }
 
+  // How writes are spread across connections.
+  public enum Striping {
+    // Prefer the connection with the fewest unacknowledged writes.
+    LEAST_OUTSTANDING,
+    // Pin each writer thread to one connection, falling over to the next
+    // open one.
+    THREAD_AFFINITY
+  }
+
   // STATE STATE STATE
   public volatile State state = State.DISCONNECTED;
-  public final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1);
+  public volatile EventLoopGroup eventLoopGroup;
+  // The shared group eventLoopGroup was retained from, if any.
+  public volatile SharedEventLoopGroup retainedGroup;
   public final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+  // One Stripe per connection to the remote endpoint. Each reconnects
+  // independently and holds at most one live channel.
+  public volatile Stripe[] stripes = new Stripe[0];
   public volatile Bootstrap bootstrap;
   public volatile Semaphore writeLimiter = new Semaphore(8192);
+  // Encoded bytes written but not yet flushed to the socket.
+  public final AtomicLong bytesInFlight = new AtomicLong();
+  // Producers waiting for capacity, blocked or via capacity() promises.
+  public final Object capacityLock = new Object();
+  public final AtomicInteger blockedWriters = new AtomicInteger();
+  public final ConcurrentLinkedQueue<Promise<Boolean>> capacityPromises =
+    new ConcurrentLinkedQueue<Promise<Boolean>>();
+  public final CapacityHandler capacityHandler = new CapacityHandler();
+  // Outcomes of writes across every connection, including fire-and-forget
+  // writes.
+  public final AckStats ackStats = new AckStats();
+  // Whether our connections are up, for layers above us to consult.
+  public final ConnectionHealth health = new ConnectionHealth();
+  // Refuses writes outright while the connection is down or timing out.
+  public final CircuitBreaker breaker = new CircuitBreaker(health, ackStats);
 
   // Configuration
   public final AtomicBoolean autoFlush      = new AtomicBoolean(true);
   public final AtomicInteger writeLimit     = new AtomicInteger(8192);
+  // Reconnection delays, in ms, start at reconnectDelay and back off with
+  // jitter up to reconnectDelayMax; see ReconnectBackoff. A max no greater
+  // than reconnectDelay makes every delay the same.
   public final AtomicLong    reconnectDelay = new AtomicLong(5000);
+  public final AtomicLong    reconnectDelayMax = new AtomicLong(60000);
   public final AtomicInteger connectTimeout = new AtomicInteger(5000);
-  public final AtomicInteger writeTimeout   = new AtomicInteger(5000);
+  // Time, in ms, the server has to acknowledge a write before its promise
+  // fails. After maxConsecutiveTimeouts in a row the connection is
+  // recycled. Both are off (0) unless set.
+  public final AtomicInteger writeTimeout   = new AtomicInteger(0);
+  public final AtomicInteger maxConsecutiveTimeouts = new AtomicInteger(0);
+  // A connection which has read nothing for heartbeatInterval ms is sent an
+  // empty message, and recycled unless it's answered within
+  // heartbeatTimeout ms; see HeartbeatHandler. Off (0) unless set.
+  public final AtomicInteger heartbeatInterval = new AtomicInteger(0);
+  public final AtomicInteger heartbeatTimeout  = new AtomicInteger(5000);
   public final AtomicInteger writeBufferHigh = new AtomicInteger(1024 * 64);
   public final AtomicInteger writeBufferLow  = new AtomicInteger(1024 * 8);
+  // Maximum encoded bytes in flight before writes are rejected.
+  public final AtomicLong    writeBufferBytes = new AtomicLong(1024 * 1024 * 16);
+  // Flushes are consolidated until this many messages or bytes are pending,
+  // or until the end of the current event loop tick.
+  public final AtomicBoolean consolidateFlushes = new AtomicBoolean(true);
+  public final AtomicInteger flushMaxMessages = new AtomicInteger(256);
+  public final AtomicInteger flushMaxBytes    = new AtomicInteger(1024 * 32);
+  public final AtomicInteger connections    = new AtomicInteger(1);
+  public final AtomicInteger ioThreads      = new AtomicInteger(1);
+  public volatile Striping striping = Striping.LEAST_OUTSTANDING;
+  // Native I/O is opt-in, and falls back to NIO where unavailable. The
+  // socket options below only apply to the native transports.
+  public volatile IoMode ioMode = IoMode.NIO;
+  // Run on a shared group instead of creating our own; see
+  // setEventLoopGroup. Overrides ioMode and ioThreads.
+  public volatile SharedEventLoopGroup sharedEventLoopGroup;
+  public final AtomicBoolean tcpQuickAck = new AtomicBoolean(false);
+  // TCP Fast Open on connect and every reconnect; needs
+  // net.ipv4.tcp_fastopen enabled on the client host.
+  public final AtomicBoolean tcpFastOpenConnect = new AtomicBoolean(false);
+  // SO_BUSY_POLL, in microseconds; 0 disables. Epoll only.
+  public final AtomicInteger busyPollMicros = new AtomicInteger(0);
 
   public final InetSocketAddress remoteAddress;
   public final InetSocketAddress localAddress;
@@ -131,6 +194,38 @@ public class TcpTransport implements AsynchronousTransport {
     return this;
   }
 
+  // Set the number of connections to open to the remote endpoint, and the
+  // number of I/O threads to spread them over.
+  public synchronized TcpTransport setConnections(final int connections, final int ioThreads) {
+    if (isConnected()) {
+      throw new IllegalStateException("can't modify the connection count of a connected transport; please set it before connecting");
+    }
+    if (connections < 1 || ioThreads < 1) {
+      throw new IllegalArgumentException("connections and ioThreads must be positive");
+    }
+
+    this.connections.set(connections);
+    this.ioThreads.set(ioThreads);
+    return this;
+  }
+
+  // Run this transport's connections on a group shared with other
+  // transports.
+  public synchronized TcpTransport setEventLoopGroup(final SharedEventLoopGroup group) {
+    if (isConnected()) {
+      throw new IllegalStateException("can't change the event loop group of a connected transport; please set it before connecting");
+    }
+
+    this.sharedEventLoopGroup = group;
+    return this;
+  }
+
+  // Run this transport's connections on an event loop group owned by the
+  // caller, which is responsible for shutting it down.
+  public TcpTransport setEventLoopGroup(final EventLoopGroup group) {
+    return setEventLoopGroup(new SharedEventLoopGroup(group));
+  }
+
   @Override
   public boolean isConnected() {
     // Are we in state connected?
@@ -174,35 +269,22 @@ public class TcpTransport implements AsynchronousTransport {
     }
     state = State.CONNECTING;
 
-    // Create bootstrap
+    // Create bootstrap; each stripe gets its own copy with a handler bound
+    // to that stripe.
+    final SharedEventLoopGroup shared = sharedEventLoopGroup;
+    final IoMode mode;
+    if (shared == null) {
+      mode = ioMode;
+      eventLoopGroup = mode.newGroup(ioThreads.get());
+    } else {
+      mode = shared.ioMode;
+      eventLoopGroup = shared.retain();
+    }
+    retainedGroup = shared;
     bootstrap = new Bootstrap().group(eventLoopGroup)
       .localAddress(localAddress)
       .remoteAddress(remoteAddress)
-      .channel(NioSocketChannel.class)
-      .handler(
-        new ChannelInitializer<SocketChannel>() {
-          @Override
-          protected void initChannel(SocketChannel channel) {
-            ChannelPipeline p = channel.pipeline();
-            // Reconnections
-            p.addLast(
-              "reconnect",
-              new ReconnectHandler(bootstrap, channels, reconnectDelay, TimeUnit.MILLISECONDS));
-
-            // TLS
-            final SslHandler sslHandler = sslHandler();
-            if (sslHandler != null) {
-              p.addLast("tls", sslHandler);
-            }
-
-            // Normal codec
-            p.addLast("frame-decoder", new LengthFieldBasedFrameDecoder(
-                Integer.MAX_VALUE, 0, 4, 0, 4));
-            p.addLast("frame-encoder", frameEncoder);
-            p.addLast("protobuf-decoder", pbDecoder);
-            p.addLast("protobuf-encoder", pbEncoder);
-            p.addLast("handler", new TcpHandler(exceptionReporter));
-          }});
+      .channel(mode.socketChannel());
 
     // Set bootstrap options
     bootstrap.option(ChannelOption.TCP_NODELAY, true);
@@ -210,26 +292,105 @@ public class TcpTransport implements AsynchronousTransport {
     bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout.get());
     bootstrap.option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, writeBufferLow.get());
     bootstrap.option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, writeBufferHigh.get());
-    bootstrap.localAddress(localAddress);
-    bootstrap.remoteAddress(remoteAddress);
-
-    // Connect and wait for connection ready
-    final ChannelFuture result = bootstrap.connect();
-    channels.add(result.channel());
-    result.awaitUninterruptibly();
+    bootstrap.option(ChannelOption.MESSAGE_SIZE_ESTIMATOR, MsgSizeEstimator.INSTANCE);
+    mode.tcpOptions(bootstrap,
+        tcpQuickAck.get(), tcpFastOpenConnect.get(), busyPollMicros.get());
+
+    // Connect every stripe, then wait for all of them
+    final int n = connections.get();
+    health.connecting(n);
+    breaker.reset();
+    final Stripe[] newStripes = new Stripe[n];
+    final ChannelFuture[] results = new ChannelFuture[n];
+    for (int i = 0; i < n; i++) {
+      newStripes[i] = new Stripe();
+      results[i] = connectStripe(newStripes[i]);
+    }
+    stripes = newStripes;
+
+    Throwable cause = null;
+    boolean anySuccess = false;
+    for (ChannelFuture result : results) {
+      result.awaitUninterruptibly();
+      if (result.isSuccess()) {
+        anySuccess = true;
+      } else if (cause == null) {
+        cause = result.cause();
+      }
+    }
 
     // At this point we consider the client "connected"--even though the
-    // connection may have failed. The channel will continue to initiate
+    // connection may have failed. The channels will continue to initiate
     // reconnect attempts in the background.
     state = State.CONNECTED;
 
     // We'll throw an exception so users can pretend this call is synchronous
     // (and log errors as appropriate) but the client might succeed later.
-    if (! result.isSuccess()) {
-      throw new IOException("Connection failed", result.cause());
+    if (! anySuccess) {
+      throw new IOException("Connection failed", cause);
     }
   }
 
+  // Opens a single connection whose channels (including reconnections) are
+  // tracked in the given stripe.
+  public ChannelFuture connectStripe(final Stripe stripe) {
+    final Bootstrap b = bootstrap.clone();
+    // Outlives each reconnected channel's handler.
+    final ReconnectBackoff backoff =
+      new ReconnectBackoff(reconnectDelay, reconnectDelayMax);
+    b.handler(
+      new ChannelInitializer<SocketChannel>() {
+        @Override
+        protected void initChannel(SocketChannel channel) {
+          channels.add(channel);
+
+          ChannelPipeline p = channel.pipeline();
+          // Reconnections
+          p.addLast(
+            "reconnect",
+            new ReconnectHandler(b, stripe, backoff, health));
+
+          // TLS
+          final SslHandler sslHandler = sslHandler();
+          if (sslHandler != null) {
+            p.addLast("tls", sslHandler);
+          }
+
+          // Merge per-message flushes into gathering writes
+          if (consolidateFlushes.get()) {
+            p.addLast("flush-consolidator", new FlushConsolidator(
+                flushMaxMessages.get(), flushMaxBytes.get()));
+          }
+
+          // Normal codec
+          p.addLast("frame-decoder", new LengthFieldBasedFrameDecoder(
+              Integer.MAX_VALUE, 0, 4, 0, 4));
+          p.addLast("protobuf-decoder", pbDecoder);
+          p.addLast("msg-encoder", msgEncoder);
+
+          // Liveness
+          final int heartbeat = heartbeatInterval.get();
+          if (0 < heartbeat) {
+            p.addLast("idle", new IdleStateHandler(
+                heartbeat, 0, 0, TimeUnit.MILLISECONDS));
+          }
+
+          p.addLast("handler", new TcpHandler(
+              exceptionReporter, ackStats,
+              writeTimeout.get(), maxConsecutiveTimeouts.get(), stripe));
+          if (0 < heartbeat) {
+            p.addLast("heartbeat", new HeartbeatHandler(
+                ackStats, Math.max(1, heartbeatTimeout.get())));
+          }
+          p.addLast("capacity", capacityHandler);
+        }});
+
+    final ChannelFuture result = b.connect();
+    channels.add(result.channel());
+    stripe.add(result.channel());
+    return result;
+  }
+
   @Override
   public void close() {
     close(false);
@@ -240,12 +401,30 @@ public class TcpTransport implements AsynchronousTransport {
       return;
     }
 
+    health.closed();
     try {
       channels.close().awaitUninterruptibly();
-      eventLoopGroup.shutdownGracefully().awaitUninterruptibly();
+      if (retainedGroup != null) {
+        retainedGroup.release().awaitUninterruptibly();
+      } else if (eventLoopGroup != null) {
+        eventLoopGroup.shutdownGracefully().awaitUninterruptibly();
+      }
     } finally {
       bootstrap = null;
+      eventLoopGroup = null;
+      retainedGroup = null;
+      stripes = new Stripe[0];
       state = State.DISCONNECTED;
+
+      // Nobody should keep waiting on a closed transport.
+      final IOException closed = new IOException("client closed");
+      Promise<Boolean> p;
+      while ((p = capacityPromises.poll()) != null) {
+        p.deliver(closed);
+      }
+      synchronized (capacityLock) {
+        capacityLock.notifyAll();
+      }
     }
   }
 
@@ -264,59 +443,340 @@ public class TcpTransport implements AsynchronousTransport {
   // the corresponding response Msg.
   @Override
   public IPromise<Msg> sendMessage(final Msg msg) {
-    return sendMessage(msg, new Promise<Msg>());
+    if (state == State.CONNECTED && ! breaker.allow()) {
+      return CircuitBreaker.REJECTED;
+    }
+    return write(msg, new Promise<Msg>(), Write.DEFAULT_TIMEOUT, false);
+  }
+
+  // Returns the handler of a stripe's channel if that's active, or null.
+  public static TcpHandler activeHandler(final Stripe stripe) {
+    final TcpHandler handler = stripe.active.get();
+    return (handler != null && handler.channel.isActive()) ? handler : null;
+  }
+
+  // Returns the active channel in a stripe, or null.
+  public static Channel activeChannel(final Stripe stripe) {
+    final TcpHandler handler = activeHandler(stripe);
+    return (handler == null) ? null : handler.channel;
+  }
+
+  // The channel handler() picks, or null.
+  public Channel channel() {
+    final TcpHandler handler = handler();
+    return (handler == null) ? null : handler.channel;
+  }
+
+  // Picks the connection the calling thread should write to. A thread which
+  // is itself one of our channels' event loops (say, a handler in the host
+  // application's server sharing our group) gets that channel, so the write
+  // runs inline instead of being handed off to another thread. Otherwise
+  // it's up to the striping strategy. Returns the channel's handler, or null
+  // if no channel is active.
+  public TcpHandler handler() {
+    final Stripe[] s = stripes;
+    final int n = s.length;
+    if (n == 0) {
+      return null;
+    }
+
+    for (int i = 0; i < n; i++) {
+      final TcpHandler handler = activeHandler(s[i]);
+      if (handler != null && handler.channel.eventLoop().inEventLoop()) {
+        return handler;
+      }
+    }
+
+    if (striping == Striping.THREAD_AFFINITY) {
+      final int start = (int) (Thread.currentThread().getId() % n);
+      for (int i = 0; i < n; i++) {
+        final TcpHandler handler = activeHandler(s[(start + i) % n]);
+        if (handler != null) {
+          return handler;
+        }
+      }
+      return null;
+    }
+
+    TcpHandler best = null;
+    int bestOutstanding = Integer.MAX_VALUE;
+    for (int i = 0; i < n; i++) {
+      final TcpHandler handler = activeHandler(s[i]);
+      if (handler == null) {
+        continue;
+      }
+      final int outstanding = handler.outstanding.get();
+      if (outstanding < bestOutstanding) {
+        best = handler;
+        bestOutstanding = outstanding;
+      }
+    }
+    return best;
+  }
+
+  // Is at least one channel able to take writes without queueing past its
+  // high water mark?
+  public boolean isWritable() {
+    for (Stripe stripe : stripes) {
+      final Channel channel = activeChannel(stripe);
+      if (channel != null && channel.isWritable()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Could a write be accepted right now? Considers the message limit, the
+  // byte budget, and channel writability.
+  public boolean hasCapacity() {
+    return state == State.CONNECTED
+      && 0 < writeLimiter.availablePermits()
+      && bytesInFlight.get() < writeBufferBytes.get()
+      && isWritable();
+  }
+
+  // Blocks until the transport has capacity for another write, the
+  // transport is closed, or the timeout elapses. Returns true if capacity is
+  // available.
+  public boolean awaitCapacity(final long time, final TimeUnit unit) {
+    if (hasCapacity()) {
+      return true;
+    }
+
+    final long deadline = System.nanoTime() + unit.toNanos(time);
+    synchronized (capacityLock) {
+      blockedWriters.incrementAndGet();
+      try {
+        while (! hasCapacity()) {
+          if (state != State.CONNECTED) {
+            return false;
+          }
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(capacityLock, remaining);
+        }
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        blockedWriters.decrementAndGet();
+      }
+    }
+  }
+
+  // Returns a promise of true, delivered once the transport has capacity for
+  // another write. Delivered with an IOException if the transport closes
+  // first.
+  public IPromise<Boolean> capacity() {
+    final Promise<Boolean> p = new Promise<Boolean>();
+    if (hasCapacity()) {
+      p.deliver(true);
+      return p;
+    }
+
+    capacityPromises.add(p);
+    // Capacity may have freed up before we were enqueued.
+    signalCapacity();
+    return p;
+  }
+
+  // Wakes up producers waiting for capacity, if there is any.
+  public void signalCapacity() {
+    if (0 == blockedWriters.get() && capacityPromises.isEmpty()) {
+      return;
+    }
+    if (! hasCapacity()) {
+      return;
+    }
+
+    Promise<Boolean> p;
+    while ((p = capacityPromises.poll()) != null) {
+      p.deliver(true);
+    }
+    if (0 < blockedWriters.get()) {
+      synchronized (capacityLock) {
+        capacityLock.notifyAll();
+      }
+    }
+  }
+
+  // Returns bytes to the budget once a write leaves our local buffer.
+  public void releaseBytes(final long bytes) {
+    bytesInFlight.addAndGet(-bytes);
+    signalCapacity();
+  }
+
+  // Write a message with its own acknowledgement deadline, overriding
+  // writeTimeout. A timeout of 0 waits indefinitely.
+  public IPromise<Msg> sendMessage(final Msg msg, final long timeout, final TimeUnit unit) {
+    if (state == State.CONNECTED && ! breaker.allow()) {
+      return CircuitBreaker.REJECTED;
+    }
+    return write(msg, new Promise<Msg>(), unit.toMillis(timeout), false);
   }
 
-  // Write a message to any available handler, fulfilling a specific promise.
   public Promise<Msg> sendMessage(final Msg msg, final Promise<Msg> promise) {
+    return sendMessage(msg, promise, Write.DEFAULT_TIMEOUT);
+  }
+
+  // Write a message to any available handler, fulfilling a specific promise.
+  public Promise<Msg> sendMessage(final Msg msg,
+                                  final Promise<Msg> promise,
+                                  final long timeoutMillis) {
+    return write(msg, promise, timeoutMillis);
+  }
+
+  // Write an already serialized message, fulfilling a specific promise.
+  public Promise<Msg> sendEncoded(final EncodedMsg msg, final Promise<Msg> promise) {
+    return write(msg, promise, Write.DEFAULT_TIMEOUT);
+  }
+
+  // Writes a Msg or EncodedMsg, unless the circuit breaker refuses it.
+  public Promise<Msg> write(final Object msg,
+                            final Promise<Msg> promise,
+                            final long timeoutMillis) {
+    return write(msg, promise, timeoutMillis, true);
+  }
+
+  private Promise<Msg> write(final Object msg,
+                             final Promise<Msg> promise,
+                             final long timeoutMillis,
+                             final boolean checkBreaker) {
     if (state != State.CONNECTED) {
       promise.deliver(new IOException("client not connected"));
       return promise;
     }
 
-    final Write write = new Write(msg, promise);
+    if (checkBreaker && ! breaker.allow()) {
+      promise.deliver(CircuitBreaker.OPEN);
+      return promise;
+    }
+
+    final Write write = new Write(msg, promise, timeoutMillis);
     final Semaphore limiter = writeLimiter;
 
     // Reserve a slot in the queue
-    if (limiter.tryAcquire()) {
-      for (Channel channel : channels) {
-        // When the write is flushed from our local buffer, release our
-        // limiter permit.
-        ChannelFuture f;
-        if (autoFlush.get()) {
-          f = channel.writeAndFlush(write);
-        } else {
-          f = channel.write(write);
-        }
-        f.addListener(
-            new ChannelFutureListener() {
-              @Override
-              public void operationComplete(ChannelFuture f) {
-                limiter.release();
-              }
-            });
-        return promise;
-      }
+    if (! limiter.tryAcquire()) {
+      promise.deliver(
+          new OverloadedException(
+              "client write buffer is full: "
+                  + writeLimiter.availablePermits()
+                  + " / "
+                  + writeLimit.get()
+                  + " messages."));
+      return promise;
+    }
 
+    final TcpHandler handler = handler();
+    if (handler == null) {
       // No channels available, release the slot.
       limiter.release();
       promise.deliver(new IOException("no channels available"));
       return promise;
     }
 
-    // Buffer's full.
-    promise.deliver(
-        new OverloadedException(
-            "client write buffer is full: "
-                + writeLimiter.availablePermits()
-                + " / "
-                + writeLimit.get()
-                + " messages."));
+    // Reserve room in the byte budget. A single message larger than the
+    // whole budget is still let through when nothing else is in flight.
+    final long size = msgEncoder.frameSize(msg);
+    final long inFlight = bytesInFlight.addAndGet(size);
+    final long budget = writeBufferBytes.get();
+    if (budget < inFlight && size < inFlight) {
+      bytesInFlight.addAndGet(-size);
+      limiter.release();
+      promise.deliver(
+          new OverloadedException(
+              "client write buffer is full: "
+                  + (inFlight - size)
+                  + " / "
+                  + budget
+                  + " bytes."));
+      return promise;
+    }
+
+    // Count the write against this connection until it is acknowledged.
+    final Channel channel = handler.channel;
+    handler.outstanding.incrementAndGet();
+
+    // When the write is flushed from our local buffer, release our
+    // limiter permit and bytes.
+    ChannelFuture f;
+    if (autoFlush.get()) {
+      f = channel.writeAndFlush(write);
+    } else {
+      f = channel.write(write);
+    }
+    f.addListener(
+        new ChannelFutureListener() {
+          @Override
+          public void operationComplete(ChannelFuture f) {
+            limiter.release();
+            releaseBytes(size);
+          }
+        });
     return promise;
   }
 
+  // Writes a message without a promise for its response. The response is
+  // still matched to the write and counted in ackStats, but nothing is
+  // allocated per message beyond Netty's own bookkeeping. Bounded by channel
+  // writability rather than the write limits. Returns false, and counts a
+  // rejection, if the message could not be written.
+  public boolean sendMessageAndForget(final Msg msg) {
+    return writeAndForget(msg);
+  }
+
+  public boolean sendEncodedAndForget(final EncodedMsg msg) {
+    return writeAndForget(msg);
+  }
+
+  // Writes a Msg or EncodedMsg without a promise.
+  public boolean writeAndForget(final Object msg) {
+    if (state != State.CONNECTED || ! breaker.allow()) {
+      ackStats.rejected.increment();
+      return false;
+    }
+
+    final TcpHandler handler = handler();
+    if (handler == null || ! handler.channel.isWritable()) {
+      ackStats.rejected.increment();
+      return false;
+    }
+
+    final Channel channel = handler.channel;
+    handler.outstanding.incrementAndGet();
+
+    if (autoFlush.get()) {
+      channel.writeAndFlush(msg, channel.voidPromise());
+    } else {
+      channel.write(msg, channel.voidPromise());
+    }
+    return true;
+  }
+
   @Override
   public Transport transport() {
     return null;
   }
+
+  // Wakes capacity waiters when a channel comes up or drains below its low
+  // water mark.
+  @ChannelHandler.Sharable
+  public class CapacityHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+      signalCapacity();
+      super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+      if (ctx.channel().isWritable()) {
+        signalCapacity();
+      }
+      super.channelWritabilityChanged(ctx);
+    }
+  }
 }
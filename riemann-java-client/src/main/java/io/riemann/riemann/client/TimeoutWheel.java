@@ -0,0 +1,77 @@
+package io.riemann.riemann.client;
+
+// A hashed timing wheel over long ids, in the style of Netty's
+// HashedWheelTimer but confined to a single thread and driven by the caller:
+// there is no timer thread and no per-timeout object. Each bucket covers one
+// tick and holds the ids due in that tick in a growable array, so adding a
+// timeout allocates nothing once the buckets have warmed up.
+//
+// Deadlines further out than the wheel spans are parked in the furthest
+// bucket. The wheel itself never decides that an id has expired; it hands
+// each id in a passing bucket to the callback, which checks the real
+// deadline and may add the id again.
+public class TimeoutWheel {
+  public interface Callback {
+    void due(long id, long now);
+  }
+
+  public final long tickNanos;
+  private final long[][] buckets;
+  private final int[] counts;
+  private final int mask;
+  private final long start;
+  // The next tick to be processed.
+  private long tick = 0;
+
+  public TimeoutWheel(final long tickNanos, final int ticksPerWheel, final long now) {
+    int n = 2;
+    while (n < ticksPerWheel) {
+      n <<= 1;
+    }
+    this.tickNanos = tickNanos;
+    this.buckets = new long[n][];
+    this.counts = new int[n];
+    this.mask = n - 1;
+    this.start = now;
+    for (int i = 0; i < n; i++) {
+      buckets[i] = new long[8];
+    }
+  }
+
+  // Schedules an id to be handed to the callback no earlier than deadline
+  // (a System.nanoTime()).
+  public void add(final long id, final long deadline) {
+    long due = (deadline - start + tickNanos - 1) / tickNanos;
+    if (due < tick) {
+      due = tick;
+    }
+    // Never the bucket behind the current one, which may be mid-advance.
+    if (tick + mask - 1 < due) {
+      due = tick + mask - 1;
+    }
+
+    final int b = (int) (due & mask);
+    if (counts[b] == buckets[b].length) {
+      final long[] bigger = new long[buckets[b].length << 1];
+      System.arraycopy(buckets[b], 0, bigger, 0, counts[b]);
+      buckets[b] = bigger;
+    }
+    buckets[b][counts[b]++] = id;
+  }
+
+  // Processes every tick up to now, handing their ids to the callback.
+  public void advance(final long now, final Callback callback) {
+    final long current = (now - start) / tickNanos;
+    while (tick <= current) {
+      final int b = (int) (tick & mask);
+      final long[] ids = buckets[b];
+      final int n = counts[b];
+      // Anything the callback re-adds lands in a later tick.
+      counts[b] = 0;
+      tick++;
+      for (int i = 0; i < n; i++) {
+        callback.due(ids[i], now);
+      }
+    }
+  }
+}
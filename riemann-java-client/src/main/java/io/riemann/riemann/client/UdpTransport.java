@@ -3,6 +3,7 @@ package io.riemann.riemann.client;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
@@ -12,15 +13,11 @@ import io.netty.channel.DefaultEventLoopGroup;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.handler.codec.protobuf.ProtobufEncoder;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import io.riemann.riemann.Proto.Msg;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -31,7 +28,7 @@ public class UdpTransport implements SynchronousTransport {
     new Promise<Msg>();
 
   // Shared pipeline handlers
-  public static final ProtobufEncoder pbEncoder = new ProtobufEncoder();
+  public static final MsgEncoder msgEncoder = new MsgEncoder(false);
   public final DiscardHandler discardHandler = new DiscardHandler();
 
   public static final int DEFAULT_PORT = 5555;
@@ -47,8 +44,13 @@ public class UdpTransport implements SynchronousTransport {
   // STATE STATE STATE
   public volatile State state = State.DISCONNECTED;
   public volatile Bootstrap bootstrap;
-  public final EventLoopGroup eventLoopGroup = new NioEventLoopGroup();
+  public volatile EventLoopGroup eventLoopGroup;
+  // The shared group eventLoopGroup was retained from, if any.
+  public volatile SharedEventLoopGroup retainedGroup;
   public final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+  // Whether our channel is up. Closing marks it closed, so a ReconnectHandler
+  // still running on a shared group won't bring it back.
+  public final ConnectionHealth health = new ConnectionHealth();
 
   // Configuration
   public final AtomicLong reconnectDelay = new AtomicLong(5000);
@@ -56,6 +58,12 @@ public class UdpTransport implements SynchronousTransport {
   // Changes to this value are applied only on reconnect.
   public final AtomicInteger sendBufferSize = new AtomicInteger(16384);
   public final AtomicBoolean autoFlush = new AtomicBoolean(true);
+  // Native I/O is opt-in, and falls back to NIO where unavailable.
+  public volatile IoMode ioMode = IoMode.NIO;
+  // Run on a shared group instead of creating our own. Overrides ioMode.
+  public volatile SharedEventLoopGroup sharedEventLoopGroup;
+  // SO_BUSY_POLL, in microseconds; 0 disables. Epoll only.
+  public final AtomicInteger busyPollMicros = new AtomicInteger(0);
 
   public final InetSocketAddress remoteAddress;
   public final InetSocketAddress localAddress;
@@ -101,6 +109,22 @@ public class UdpTransport implements SynchronousTransport {
     this(InetAddress.getLocalHost().getHostAddress(), port);
   }
 
+  // Run this transport's channel on a group shared with other transports.
+  public synchronized UdpTransport setEventLoopGroup(final SharedEventLoopGroup group) {
+    if (isConnected()) {
+      throw new IllegalStateException("can't change the event loop group of a connected transport; please set it before connecting");
+    }
+
+    this.sharedEventLoopGroup = group;
+    return this;
+  }
+
+  // Run this transport's channel on an event loop group owned by the caller,
+  // which is responsible for shutting it down.
+  public UdpTransport setEventLoopGroup(final EventLoopGroup group) {
+    return setEventLoopGroup(new SharedEventLoopGroup(group));
+  }
+
   @Override
   public boolean isConnected() {
     // Are we in state connected?
@@ -116,8 +140,19 @@ public class UdpTransport implements SynchronousTransport {
     state = State.CONNECTING;
 
     // Create bootstrap
+    // There's only ever one channel, so one thread is plenty.
+    final SharedEventLoopGroup shared = sharedEventLoopGroup;
+    final IoMode mode;
+    if (shared == null) {
+      mode = ioMode;
+      eventLoopGroup = mode.newGroup(1);
+    } else {
+      mode = shared.ioMode;
+      eventLoopGroup = shared.retain();
+    }
+    retainedGroup = shared;
     bootstrap = new Bootstrap().group(eventLoopGroup)
-                  .channel(NioDatagramChannel.class);
+                  .channel(mode.datagramChannel());
 
     // Set up pipeline factory.
     bootstrap.handler(
@@ -128,9 +163,9 @@ public class UdpTransport implements SynchronousTransport {
           p.addLast("reconnect", new ReconnectHandler(
             bootstrap,
             channels,
-            reconnectDelay,
-            TimeUnit.MILLISECONDS));
-          p.addLast("protobuf-encoder", pbEncoder);
+            new ReconnectBackoff(reconnectDelay, new AtomicLong(0)),
+            health));
+          p.addLast("msg-encoder", msgEncoder);
           p.addLast("discard", discardHandler);
         }
       }
@@ -140,8 +175,10 @@ public class UdpTransport implements SynchronousTransport {
     bootstrap.remoteAddress(remoteAddress);
     bootstrap.localAddress(localAddress);
     bootstrap.option(ChannelOption.SO_SNDBUF, sendBufferSize.get());
+    mode.udpOptions(bootstrap, busyPollMicros.get());
 
     // Connect
+    health.connecting(1);
     final ChannelFuture result = bootstrap.connect();
     channels.add(result.channel());
     result.awaitUninterruptibly();
@@ -165,15 +202,22 @@ public class UdpTransport implements SynchronousTransport {
     if (!(force || state == State.CONNECTED)) {
       return;
     }
-    // Close channel
+    // Close channel, for good
+    health.closed();
     try {
       channels.close().awaitUninterruptibly();
     } finally {
 
       // Stop bootstrap
       try {
-        eventLoopGroup.shutdownGracefully();
+        if (retainedGroup != null) {
+          retainedGroup.release();
+        } else if (eventLoopGroup != null) {
+          eventLoopGroup.shutdownGracefully();
+        }
       } finally {
+        eventLoopGroup = null;
+        retainedGroup = null;
         bootstrap = null;
         state = State.DISCONNECTED;
       }
@@ -208,6 +252,7 @@ public class UdpTransport implements SynchronousTransport {
     return null;
   }
 
+  @ChannelHandler.Sharable
   public class DiscardHandler extends ChannelInboundHandlerAdapter {
 
     @Override
@@ -3,11 +3,23 @@ package io.riemann.riemann.client;
 import io.riemann.riemann.Proto.Msg;
 
 public class Write {
-  public final Msg message;
+  // Timeout value meaning "use the channel's default".
+  public static final long DEFAULT_TIMEOUT = -1;
+
+  // A Msg or an EncodedMsg.
+  public final Object message;
   public final Promise<Msg> promise;
+  // How long, in ms, the server has to acknowledge this write; 0 for no
+  // deadline at all.
+  public final long timeoutMillis;
+
+  public Write(final Object message, final Promise<Msg> promise) {
+    this(message, promise, DEFAULT_TIMEOUT);
+  }
 
-  public Write(final Msg message, final Promise<Msg> promise) {
+  public Write(final Object message, final Promise<Msg> promise, final long timeoutMillis) {
     this.message = message;
     this.promise = promise;
+    this.timeoutMillis = timeoutMillis;
   }
 }
@@ -0,0 +1,98 @@
+package riemann.java.client.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.riemann.riemann.Proto.Msg;
+import io.riemann.riemann.client.AckQueue;
+import io.riemann.riemann.client.Promise;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class AckQueueTest {
+  @Test
+  public void fifoAcrossGrowthTest() {
+    final AckQueue queue = new AckQueue(4);
+    final List<Promise<Msg>> promises = new ArrayList<Promise<Msg>>();
+
+    // Interleave puts and takes so the ring wraps before it grows.
+    for (int i = 0; i < 3; i++) {
+      final Promise<Msg> p = new Promise<Msg>();
+      promises.add(p);
+      queue.put(p);
+    }
+    assertSame(promises.remove(0), queue.take());
+    for (int i = 0; i < 100; i++) {
+      final Promise<Msg> p = new Promise<Msg>();
+      promises.add(p);
+      queue.put(p);
+    }
+
+    assertEquals(promises.size(), queue.size());
+    for (Promise<Msg> p : promises) {
+      assertSame(p, queue.take());
+    }
+    assertTrue(queue.isEmpty());
+    assertNull(queue.take());
+  }
+
+  @Test
+  public void closeFailsOutstandingTest() throws IOException {
+    final AckQueue queue = new AckQueue();
+    final Promise<Msg> outstanding = new Promise<Msg>();
+    queue.put(outstanding);
+
+    queue.close(new IOException("boom"));
+    assertEquals(0, queue.size());
+    try {
+      outstanding.deref();
+      fail("Should have been failed by close");
+    } catch (IOException e) {
+      assertEquals("channel closed", e.getMessage());
+    }
+
+    // Writes after close fail immediately.
+    final Promise<Msg> late = new Promise<Msg>();
+    queue.put(late);
+    assertEquals(0, queue.size());
+    try {
+      late.deref();
+      fail("Should have been rejected by a closed queue");
+    } catch (IOException e) {
+      assertEquals("Channel closed.", e.getMessage());
+    }
+  }
+
+  @Test
+  public void expireKeepsSlotTest() throws IOException {
+    final AckQueue queue = new AckQueue();
+    final Promise<Msg> first = new Promise<Msg>();
+    final Promise<Msg> second = new Promise<Msg>();
+    final long seq = queue.nextSeq();
+    queue.put(first, 0, 100);
+    queue.put(second, 0, AckQueue.NO_DEADLINE);
+
+    assertTrue(queue.isOutstanding(seq));
+    assertEquals(100, queue.deadline(seq));
+    assertTrue(queue.expire(seq, new IOException("late")));
+    assertTrue(!queue.expire(seq, new IOException("late again")));
+    try {
+      first.deref();
+      fail("Should have been failed by expire");
+    } catch (IOException e) {
+      assertEquals("late", e.getMessage());
+    }
+
+    // The expired entry still consumes the next response.
+    assertEquals(2, queue.size());
+    assertTrue(queue.peekExpired());
+    assertNull(queue.take());
+    assertTrue(!queue.isOutstanding(seq));
+    assertSame(second, queue.take());
+  }
+}
@@ -0,0 +1,832 @@
+package riemann.java.client.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.riemann.riemann.Proto.Event;
+import io.riemann.riemann.Proto.Msg;
+import io.riemann.riemann.client.BatchPromise;
+import io.riemann.riemann.client.BoundedBatchBuffer;
+import io.riemann.riemann.client.CircuitBreaker;
+import io.riemann.riemann.client.CoalescingBatchBuffer;
+import io.riemann.riemann.client.IPromise;
+import io.riemann.riemann.client.Journal;
+import io.riemann.riemann.client.JournaledException;
+import io.riemann.riemann.client.OverloadedException;
+import io.riemann.riemann.client.RiemannBatchClient;
+import io.riemann.riemann.client.RiemannClient;
+import io.riemann.riemann.client.RingBatchBuffer;
+import io.riemann.riemann.client.SupersededException;
+import io.riemann.riemann.client.TcpTransport;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class BatchClientTest {
+  public static Event event(final int i) {
+    return Event.newBuilder()
+      .setHost("batch")
+      .setService("service " + i)
+      .setMetricSint64(i)
+      .build();
+  }
+
+  public static void assertOk(final IPromise<Msg> p) throws Exception {
+    final Msg rsp = p.deref(1, TimeUnit.SECONDS);
+    assertTrue(rsp != null && (!rsp.hasOk() || rsp.getOk()));
+  }
+
+  @Test
+  public void lingerTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 100);
+      client.lingerMillis.set(50);
+      client.connect();
+
+      // Far short of a batch, but it goes out anyway.
+      final IPromise<Msg> p = client.sendEvent(event(1));
+      assertOk(p);
+      assertEquals(1, server.received.poll(1, TimeUnit.SECONDS).getEventsCount());
+      assertEquals(0, client.buffer.size());
+      assertEquals(0, client.buffer.bytes());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void maxBatchBytesTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 100);
+      // Room for about two events per message
+      final int size = Msg.newBuilder().addEvents(event(10)).build().getSerializedSize();
+      client.maxBatchBytes.set(size * 2 + size / 2);
+      client.connect();
+
+      IPromise<Msg> last = null;
+      for (int i = 10; i < 16; i++) {
+        last = client.sendEvent(event(i));
+      }
+      client.flush();
+      assertOk(last);
+
+      // Filling the byte budget flushes early, too.
+      int events = 0;
+      while (events < 6) {
+        final Msg m = server.received.poll(1, TimeUnit.SECONDS);
+        assertTrue(m.getEventsCount() <= 2);
+        events += m.getEventsCount();
+      }
+      assertEquals(6, events);
+      assertEquals(0, client.buffer.size());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void batchPromiseTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 10);
+      client.connect();
+
+      // Events sent between flushes share one promise.
+      final IPromise<Msg> a = client.sendEvent(event(1));
+      final IPromise<Msg> b = client.sendEvent(event(2));
+      assertSame(a, b);
+
+      // A list gets its own promise, covering several messages.
+      final List<Event> events = new ArrayList<Event>();
+      for (int i = 0; i < 25; i++) {
+        events.add(event(i));
+      }
+      final IPromise<Msg> p = client.sendEvents(events);
+      assertNotSame(a, p);
+      client.flush();
+      assertOk(p);
+      assertOk(a);
+
+      // The flush sealed the shared promise; later events start another.
+      assertNotSame(a, client.sendEvent(event(3)));
+      client.flush();
+
+      int received = 0;
+      while (received < 28) {
+        received += server.received.poll(1, TimeUnit.SECONDS).getEventsCount();
+      }
+      assertEquals(28, received);
+
+      // Nothing to wait for.
+      assertOk(client.sendEvents(new ArrayList<Event>()));
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void bulkTest() throws Exception {
+    final Server server = new EchoServer(200);
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 100);
+      client.connect();
+
+      final List<Event> events = new ArrayList<Event>();
+      for (int i = 0; i < 1205; i++) {
+        events.add(event(i));
+      }
+      final IPromise<Msg> p = client.sendEvents(events);
+
+      // Whole batches went straight out, but no more than the window
+      // holds; the rest is buffered.
+      final int window = client.maxInFlight.get();
+      assertEquals(window, client.inFlightBatches.get());
+      assertEquals(1205 - 100 * window, client.buffer.size());
+      for (int i = 0; i < window; i++) {
+        final Msg m = server.received.poll(1, TimeUnit.SECONDS);
+        assertEquals(100, m.getEventsCount());
+        assertEquals(event(i * 100), m.getEvents(0));
+      }
+
+      client.flush();
+      assertTrue(p.deref(10, TimeUnit.SECONDS) != null);
+      int received = 100 * window;
+      while (received < 1205) {
+        received += server.received.poll(1, TimeUnit.SECONDS).getEventsCount();
+      }
+      assertEquals(1205, received);
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void windowTest() throws Exception {
+    final Server server = new EchoServer(200);
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 5);
+      client.maxInFlight.set(2);
+      client.connect();
+
+      IPromise<Msg> last = null;
+      for (int i = 0; i < 20; i++) {
+        last = client.sendEvent(event(i));
+      }
+
+      // Two batches out, the rest held back until they're acked.
+      assertEquals(2, client.inFlightBatches.get());
+      assertEquals(1.0, client.windowOccupancy(), 0.0);
+      assertEquals(10, client.buffer.size());
+
+      // Acks drain the rest on their own.
+      final Msg rsp = last.deref(5, TimeUnit.SECONDS);
+      assertTrue(rsp != null);
+      assertEquals(0, client.buffer.size());
+      int received = 0;
+      while (received < 20) {
+        received += server.received.poll(1, TimeUnit.SECONDS).getEventsCount();
+      }
+      assertEquals(20, received);
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void adaptiveGrowTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 5);
+      client.adaptiveBatchSize.set(true);
+      client.maxBatchSize.set(20);
+      client.targetAckMillis.set(1000);
+      client.connect();
+
+      // Quick acks for full batches grow the batch size, up to the max.
+      for (int i = 0; i < 1000; i++) {
+        client.sendEvent(event(i));
+      }
+      final IPromise<Msg> last = client.sendEvents(event(1000));
+      client.flush();
+      assertOk(last);
+      assertTrue(5 < client.effectiveBatchSize.get());
+      assertTrue(client.effectiveBatchSize.get() <= 20);
+      assertTrue(0 < client.ackRttNanos.get());
+      assertTrue(0 < client.ackedEventsPerSecond.get());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void adaptiveShrinkTest() throws Exception {
+    final Server server = new EchoServer(50);
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 16);
+      client.adaptiveBatchSize.set(true);
+      client.minBatchSize.set(2);
+      client.targetAckMillis.set(10);
+      client.connect();
+
+      // Every ack is slower than the target, so each round trip halves the
+      // batch size until it bottoms out.
+      IPromise<Msg> last = null;
+      for (int i = 0; i < 100; i++) {
+        last = client.sendEvent(event(i));
+      }
+      client.flush();
+      last.deref(10, TimeUnit.SECONDS);
+      assertTrue(client.effectiveBatchSize.get() < 16);
+      assertTrue(2 <= client.effectiveBatchSize.get());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void coalescingTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      final CoalescingBatchBuffer buffer = new CoalescingBatchBuffer();
+      client = new RiemannBatchClient(
+          RiemannClient.tcp(server.start()), 100, buffer, false);
+      client.connect();
+
+      // Ten samples each of three gauges; only the last of each survives.
+      IPromise<Msg> first = null;
+      for (int round = 0; round < 10; round++) {
+        for (int i = 0; i < 3; i++) {
+          final IPromise<Msg> p = client.sendEvent(
+              event(i).toBuilder().setMetricSint64(round).build());
+          if (first == null) {
+            first = p;
+          }
+        }
+      }
+      assertEquals(3, buffer.size());
+      assertEquals(27, buffer.coalesced.sum());
+
+      client.flush();
+      assertOk(first);
+      final Msg m = server.received.poll(1, TimeUnit.SECONDS);
+      assertEquals(3, m.getEventsCount());
+      for (int i = 0; i < 3; i++) {
+        assertEquals("service " + i, m.getEvents(i).getService());
+        assertEquals(9, m.getEvents(i).getMetricSint64());
+      }
+      assertEquals(0, buffer.size());
+      assertEquals(0, buffer.bytes());
+
+      // A sample with a promise of its own fails when it's replaced.
+      final IPromise<Msg> replaced = client.sendEvents(event(0));
+      final IPromise<Msg> latest = client.sendEvents(event(0));
+      client.flush();
+      assertOk(latest);
+      try {
+        replaced.deref(1, TimeUnit.SECONDS);
+        fail("A replaced event shouldn't report success");
+      } catch (SupersededException e) {
+      }
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void expiredTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 100);
+      client.dropExpiredEvents.set(true);
+      client.connect();
+
+      final long now = System.currentTimeMillis() / 1000;
+      // Long dead, queued just now with a short ttl, and fresh.
+      client.sendEvent(event(1).toBuilder().setTime(now - 60).setTtl(10).build());
+      client.sendEvent(event(2).toBuilder().setTtl(0.05f).build());
+      final IPromise<Msg> p = client.sendEvent(
+          event(3).toBuilder().setTime(now).setTtl(60).build());
+      Thread.sleep(100);
+
+      client.flush();
+      assertOk(p);
+      final Msg m = server.received.poll(1, TimeUnit.SECONDS);
+      assertEquals(1, m.getEventsCount());
+      assertEquals("service 3", m.getEvents(0).getService());
+      assertEquals(2, client.expired.sum());
+
+      // Whole batches which skip the buffer are filtered too.
+      final List<Event> events = new ArrayList<Event>();
+      for (int i = 0; i < 100; i++) {
+        events.add(event(i).toBuilder()
+            .setTime(i % 2 == 0 ? now - 60 : now).setTtl(10).build());
+      }
+      assertOk(client.sendEvents(events));
+      assertEquals(50, server.received.poll(1, TimeUnit.SECONDS).getEventsCount());
+      assertEquals(52, client.expired.sum());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void expiredReplayTest() throws Exception {
+    final Server server = new OkServer();
+    final File dir = Files.createTempDirectory("journal").toFile();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 10);
+      client.dropExpiredEvents.set(true);
+      client.journal = new Journal(dir, 4096, 1 << 20);
+
+      // Journaled while disconnected; one goes stale before it's replayed.
+      final long now = System.currentTimeMillis() * 1000;
+      client.sendEventAndForget(event(1).toBuilder().setTimeMicros(now).setTtl(0.05f).build());
+      client.sendEventAndForget(event(2).toBuilder().setTimeMicros(now).setTtl(60).build());
+      client.flush();
+      assertEquals(2, client.journal.size());
+      Thread.sleep(100);
+
+      client.connect();
+      final Msg m = server.received.poll(1, TimeUnit.SECONDS);
+      assertEquals(1, m.getEventsCount());
+      assertEquals("service 2", m.getEvents(0).getService());
+      assertEquals(1, client.expired.sum());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+      JournalTest.delete(dir);
+    }
+  }
+
+  @Test
+  public void priorityTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 100);
+      client.priorityStates.add("critical");
+      client.priorityTags.add("page");
+      client.connect();
+
+      for (int i = 0; i < 50; i++) {
+        client.sendEvent(event(i));
+      }
+
+      // Critical events don't wait for the bulk batch.
+      assertOk(client.sendEvent(event(50).toBuilder().setState("critical").build()));
+      Msg m = server.received.poll(1, TimeUnit.SECONDS);
+      assertEquals(1, m.getEventsCount());
+      assertEquals("critical", m.getEvents(0).getState());
+
+      // Nor do tagged ones in a list, or anything sent as priority.
+      final List<Event> events = new ArrayList<Event>();
+      events.add(event(51));
+      events.add(event(52).toBuilder().addTags("page").build());
+      client.sendEvents(events);
+      m = server.received.poll(1, TimeUnit.SECONDS);
+      assertEquals(1, m.getEventsCount());
+      assertEquals("service 52", m.getEvents(0).getService());
+
+      assertOk(client.sendPriorityEvent(event(53)));
+      m = server.received.poll(1, TimeUnit.SECONDS);
+      assertEquals("service 53", m.getEvents(0).getService());
+
+      assertEquals(51, client.buffer.size());
+      assertEquals(3, client.prioritySent.sum());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void boundedTest() throws Exception {
+    final List<RiemannBatchClient> clients = new ArrayList<RiemannBatchClient>();
+    try {
+      // Nothing drains these: the batch size is never reached.
+      BoundedBatchBuffer b =
+        bounded(BoundedBatchBuffer.OverflowPolicy.DROP_NEWEST, clients);
+      assertEquals(4, b.size());
+      assertEquals(6, b.droppedNewest.sum());
+
+      b = bounded(BoundedBatchBuffer.OverflowPolicy.DROP_OLDEST, clients);
+      assertEquals(4, b.size());
+      assertEquals(6, b.droppedOldest.sum());
+      assertEquals("service 6", writeService(b));
+
+      b = bounded(BoundedBatchBuffer.OverflowPolicy.SAMPLE, clients);
+      assertEquals(4, b.size());
+      assertEquals(2, b.sampledIn.sum());
+      assertEquals(4, b.sampledOut.sum());
+
+      b = bounded(BoundedBatchBuffer.OverflowPolicy.BLOCK, clients);
+      assertEquals(4, b.size());
+      assertEquals(6, b.blockTimeouts.sum());
+    } finally {
+      for (RiemannBatchClient client : clients) {
+        client.close();
+      }
+    }
+  }
+
+  // Fills a bounded buffer of 4 with 10 events, through a client added to
+  // clients for the caller to close.
+  public static BoundedBatchBuffer bounded(
+      final BoundedBatchBuffer.OverflowPolicy policy,
+      final List<RiemannBatchClient> clients) throws Exception {
+    final BoundedBatchBuffer buffer = new BoundedBatchBuffer(4, 1 << 20, policy);
+    buffer.blockTimeoutMillis.set(10);
+    buffer.sampleEvery.set(3);
+    final RiemannBatchClient client = new RiemannBatchClient(
+        RiemannClient.tcp(0), 100, buffer, false);
+    clients.add(client);
+    for (int i = 0; i < 10; i++) {
+      client.sendEventAndForget(event(i));
+    }
+    return buffer;
+  }
+
+  public static String writeService(final BoundedBatchBuffer buffer) throws Exception {
+    final Msg m = Msg.parseFrom(buffer.queue.peek().encoded);
+    return m.getEvents(0).getService();
+  }
+
+  @Test
+  public void journalTest() throws Exception {
+    final Server server = new OkServer();
+    final File dir = Files.createTempDirectory("journal").toFile();
+    RiemannBatchClient client = null;
+    try {
+      final Journal journal = new Journal(dir, 4096, 1 << 20);
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 10);
+      client.journal = journal;
+
+      // Not connected yet, so these go to disk.
+      for (int i = 0; i < 25; i++) {
+        client.sendEventAndForget(event(i));
+      }
+      // Promised ones too, but their promises say they weren't sent.
+      final IPromise<Msg> p = client.sendEvent(event(25));
+      client.flush();
+      try {
+        p.deref(1, TimeUnit.SECONDS);
+        fail("Journaled events shouldn't report success");
+      } catch (JournaledException e) {
+      }
+      assertEquals(26, journal.size());
+      assertEquals(26, client.journaled.sum());
+
+      // And come back once we are.
+      client.connect();
+      int received = 0;
+      while (received < 26) {
+        received += server.received.poll(1, TimeUnit.SECONDS).getEventsCount();
+      }
+      assertEquals(26, received);
+      assertTrue(journal.isEmpty());
+      // Replays count once they're acked.
+      for (int i = 0; i < 100 && client.replayed.sum() < 26; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(26, client.replayed.sum());
+
+      // Closing stops the flusher and the journal with it.
+      client.close();
+      assertTrue(client.scheduler.isShutdown());
+      assertTrue(! journal.append(new byte[1]));
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+      JournalTest.delete(dir);
+    }
+  }
+
+  @Test
+  public void spillThreadTest() throws Exception {
+    final EchoServer server = new EchoServer(1000);
+    final File dir = Files.createTempDirectory("journal").toFile();
+    RiemannBatchClient client = null;
+    try {
+      final List<String> threads = new ArrayList<String>();
+      final Journal journal = new Journal(dir, 4096, 1 << 20) {
+        @Override
+        public synchronized boolean append(final byte[] record) {
+          threads.add(Thread.currentThread().getName());
+          return super.append(record);
+        }
+      };
+      final RiemannClient raw = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) raw.transport();
+      transport.writeTimeout.set(100);
+      client = new RiemannBatchClient(raw, 10);
+      client.journal = journal;
+      client.connect();
+      for (int i = 0; i < 100 && ! transport.health.isUsable(); i++) {
+        Thread.sleep(10);
+      }
+
+      // A batch in flight times out; the event loop fails it, but the
+      // flusher writes it to disk.
+      final IPromise<Msg> p = client.sendEvent(event(1));
+      client.flush();
+      try {
+        p.deref(5, TimeUnit.SECONDS);
+        fail("Should have failed");
+      } catch (IOException e) {
+      }
+      for (int i = 0; i < 100 && client.journaled.sum() < 1; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, client.journaled.sum());
+      synchronized (journal) {
+        assertEquals(1, threads.size());
+        assertEquals("riemann-batch-flusher", threads.get(0));
+      }
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+      JournalTest.delete(dir);
+    }
+  }
+
+  @Test
+  public void replayWindowTest() throws Exception {
+    final EchoServer server = new EchoServer(300);
+    final File dir = Files.createTempDirectory("journal").toFile();
+    RiemannBatchClient client = null;
+    try {
+      final Journal journal = new Journal(dir, 4096, 1 << 20);
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 10);
+      client.maxInFlight.set(2);
+      client.journal = journal;
+      for (int i = 0; i < 50; i++) {
+        client.sendEventAndForget(event(i));
+      }
+      client.flush();
+      assertEquals(50, journal.size());
+
+      // Only as many batches as the window has room for go out; the rest
+      // wait in the journal, and aren't counted until they're acked.
+      client.connect();
+      Thread.sleep(150);
+      assertEquals(2, client.inFlightBatches.get());
+      assertEquals(30, journal.size());
+      assertEquals(0, client.replayed.sum());
+
+      for (int i = 0; i < 500 && client.replayed.sum() < 50; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(journal.isEmpty());
+      assertEquals(50, client.replayed.sum());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+      JournalTest.delete(dir);
+    }
+  }
+
+  @Test
+  public void breakerReplayTest() throws Exception {
+    final EchoServer server = new EchoServer(150);
+    final File dir = Files.createTempDirectory("journal").toFile();
+    RiemannBatchClient client = null;
+    try {
+      final Journal journal = new Journal(dir, 4096, 1 << 20);
+      final RiemannClient raw = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) raw.transport();
+      final CircuitBreaker breaker = transport.breaker;
+      transport.writeTimeout.set(50);
+      transport.maxConsecutiveTimeouts.set(0);
+      breaker.minSamples.set(3);
+      breaker.windowMillis.set(50);
+      breaker.openMillis.set(200);
+      client = new RiemannBatchClient(raw, 10);
+      client.journal = journal;
+      client.connect();
+
+      // The server falls behind, and the breaker opens.
+      for (int i = 0; i < 3; i++) {
+        raw.sendEvent(event(i));
+      }
+      for (int i = 0; i < 100 && transport.ackStats.timeouts.sum() < 3; i++) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(60);
+      raw.sendEvent(event(3));
+      assertTrue(breaker.isOpen());
+      server.delay = 0;
+
+      // Meanwhile, batches go to disk...
+      for (int i = 0; i < 5; i++) {
+        client.sendEventAndForget(event(i));
+      }
+      client.flush();
+      assertEquals(5, journal.size());
+
+      // ... until the breaker lets a replay through as its probe, and the
+      // journal drains.
+      for (int i = 0; i < 500 && (! journal.isEmpty() || client.replayed.sum() < 5); i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(journal.isEmpty());
+      assertTrue(5 <= client.replayed.sum());
+      // Writes which timed out while the server caught up may trip it
+      // again, but an answered probe closes it for good.
+      for (int i = 0; i < 50 && breaker.state != CircuitBreaker.State.CLOSED; i++) {
+        client.sendEvent(event(5));
+        client.flush();
+        Thread.sleep(50);
+        breaker.isOpen();
+      }
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.state);
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+      JournalTest.delete(dir);
+    }
+  }
+
+  @Test
+  public void retryTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(RiemannClient.tcp(server.start()), 10);
+      client.maxRetries.set(6);
+      client.retryBaseMillis.set(50);
+
+      // Fails at first: we're not connected.
+      final IPromise<Msg> p = client.sendEvents(event(1), event(2), event(3));
+      client.flush();
+      client.connect();
+
+      // But a retry gets it there.
+      final Msg rsp = p.deref(5, TimeUnit.SECONDS);
+      assertTrue(rsp != null);
+      assertTrue(1 <= client.retried.sum());
+      assertEquals(3, server.received.poll(1, TimeUnit.SECONDS).getEventsCount());
+      assertEquals(0, client.inFlightBatches.get());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void retriesExhaustedTest() throws Exception {
+    final RiemannBatchClient client =
+      new RiemannBatchClient(RiemannClient.tcp(0), 10);
+    try {
+      client.maxRetries.set(2);
+      client.retryBaseMillis.set(10);
+
+      final IPromise<Msg> p = client.sendEvents(event(1));
+      client.flush();
+      try {
+        p.deref(5, TimeUnit.SECONDS);
+        fail("Should have failed");
+      } catch (IOException e) {
+      }
+      assertEquals(2, client.retried.sum());
+      assertEquals(1, client.retriesExhausted.sum());
+      assertEquals(0, client.inFlightBatches.get());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void ringTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannBatchClient client = null;
+    try {
+      client = new RiemannBatchClient(
+          RiemannClient.tcp(server.start()), 50, 256,
+          RingBatchBuffer.WaitStrategy.PARK);
+      client.connect();
+
+      // Many producers at once; the flusher sends every full batch.
+      final RiemannBatchClient c = client;
+      final List<Thread> producers = new ArrayList<Thread>();
+      for (int t = 0; t < 8; t++) {
+        final int base = t * 1000;
+        final Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < 500; i++) {
+              c.sendEvent(event(base + i));
+            }
+          }
+        });
+        producers.add(thread);
+        thread.start();
+      }
+      for (Thread thread : producers) {
+        thread.join();
+      }
+      client.flush();
+
+      int events = 0;
+      while (events < 4000) {
+        final Msg m = server.received.poll(1, TimeUnit.SECONDS);
+        assertTrue(m.getEventsCount() <= 50);
+        events += m.getEventsCount();
+      }
+      assertEquals(4000, events);
+      assertEquals(0, client.buffer.size());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void ringFailTest() throws Exception {
+    final RiemannBatchClient client = new RiemannBatchClient(
+        RiemannClient.tcp(0), 4, 4, RingBatchBuffer.WaitStrategy.FAIL);
+    // Hold the drain lock so nothing empties the ring.
+    client.drainLock.lock();
+    try {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(client.sendEventAndForget(event(i)));
+      }
+      final IPromise<Msg> shared = client.sendEvent(event(3));
+      assertTrue(! client.sendEventAndForget(event(4)));
+      final IPromise<Msg> refused = client.sendEvent(event(5));
+      try {
+        refused.deref(1, TimeUnit.SECONDS);
+        fail("Should have been refused");
+      } catch (OverloadedException e) {
+      }
+      // The refusal is the refused event's alone.
+      assertNotSame(shared, refused);
+      assertEquals(1, ((BatchPromise) shared).pending());
+      assertTrue(! ((BatchPromise) shared).isSealed());
+    } finally {
+      client.drainLock.unlock();
+      client.close();
+    }
+  }
+}
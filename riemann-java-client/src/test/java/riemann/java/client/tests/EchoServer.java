@@ -3,7 +3,8 @@ package riemann.java.client.tests;
 import io.riemann.riemann.Proto.Msg;
 
 public class EchoServer extends Server {
-  final long delay;
+  // Milliseconds to sleep before answering each message.
+  public volatile long delay;
 
   public EchoServer() {
     this(0);
@@ -0,0 +1,69 @@
+package riemann.java.client.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.riemann.riemann.client.FlushConsolidator;
+import org.junit.Test;
+
+public class FlushConsolidatorTest {
+  // Drains and releases flushed outbound buffers, returning their count.
+  public static int drain(final EmbeddedChannel channel) {
+    int n = 0;
+    ByteBuf buf;
+    while ((buf = channel.readOutbound()) != null) {
+      buf.release();
+      n++;
+    }
+    return n;
+  }
+
+  // EmbeddedChannel runs pending tasks whenever anything reaches the head of
+  // the pipeline, so these tests write first and flush through the pipeline
+  // to observe consolidation.
+  @Test
+  public void consolidatesWithinTickTest() {
+    final EmbeddedChannel channel =
+      new EmbeddedChannel(new FlushConsolidator(100, 1024 * 1024));
+
+    for (int i = 0; i < 10; i++) {
+      channel.pipeline().write(Unpooled.wrappedBuffer(new byte[] {1, 2, 3}));
+    }
+    for (int i = 0; i < 10; i++) {
+      channel.pipeline().flush();
+    }
+    // Nothing hits the wire until the end of the tick.
+    assertNull(channel.readOutbound());
+
+    channel.runPendingTasks();
+    assertEquals(10, drain(channel));
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void thresholdsForceFlushTest() {
+    final EmbeddedChannel channel =
+      new EmbeddedChannel(new FlushConsolidator(3, 1024 * 1024));
+    for (int i = 0; i < 3; i++) {
+      channel.pipeline().write(Unpooled.wrappedBuffer(new byte[] {1}));
+    }
+    for (int i = 0; i < 3; i++) {
+      channel.pipeline().flush();
+    }
+    assertEquals(3, drain(channel));
+    channel.finishAndReleaseAll();
+
+    final EmbeddedChannel big =
+      new EmbeddedChannel(new FlushConsolidator(100, 8));
+    big.pipeline().write(Unpooled.wrappedBuffer(new byte[4]));
+    big.pipeline().flush();
+    assertNull(big.readOutbound());
+    big.pipeline().write(Unpooled.wrappedBuffer(new byte[4]));
+    big.pipeline().flush();
+    assertEquals(2, drain(big));
+    big.finishAndReleaseAll();
+  }
+}
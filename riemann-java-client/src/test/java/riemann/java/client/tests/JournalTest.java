@@ -0,0 +1,109 @@
+package riemann.java.client.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.riemann.riemann.client.Journal;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class JournalTest {
+  public static byte[] record(final int i) {
+    final byte[] r = new byte[20];
+    for (int j = 0; j < r.length; j++) {
+      r[j] = (byte) (i + j);
+    }
+    return r;
+  }
+
+  // Removes a journal directory and whatever's left in it.
+  public static void delete(final File dir) {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void rollAndRecoverTest() throws Exception {
+    final File dir = Files.createTempDirectory("journal").toFile();
+    try {
+      rollAndRecover(dir);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void rollAndRecover(final File dir) throws Exception {
+    // 24 bytes a record, so four records per segment.
+    Journal journal = new Journal(dir, 100, 1000);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(journal.append(record(i)));
+    }
+    assertEquals(10, journal.size());
+    assertEquals(3, dir.listFiles().length);
+
+    final List<byte[]> records = new ArrayList<byte[]>();
+    assertEquals(5, journal.read(records, 5));
+    for (int i = 0; i < 5; i++) {
+      assertArrayEquals(record(i), records.get(i));
+    }
+    journal.close();
+
+    // A new journal picks up the segments left behind, at their old size
+    // even though it writes bigger ones; the one read in full is gone on
+    // the next read.
+    journal = new Journal(dir, 200, 1000);
+    assertEquals(6, journal.size());
+    for (File f : dir.listFiles()) {
+      assertEquals(100, f.length());
+    }
+    records.clear();
+    assertEquals(6, journal.read(records, 100));
+    assertArrayEquals(record(4), records.get(0));
+    assertArrayEquals(record(9), records.get(5));
+    assertEquals(1, dir.listFiles().length);
+    assertTrue(journal.isEmpty());
+
+    // New records go in a new, bigger segment.
+    for (int i = 0; i < 6; i++) {
+      assertTrue(journal.append(record(i)));
+    }
+    assertEquals(2, dir.listFiles().length);
+    journal.close();
+  }
+
+  @Test
+  public void capTest() throws Exception {
+    final File dir = Files.createTempDirectory("journal").toFile();
+    final Journal journal = new Journal(dir, 100, 200);
+    try {
+      cap(journal);
+    } finally {
+      journal.close();
+      delete(dir);
+    }
+  }
+
+  public void cap(final Journal journal) throws Exception {
+    for (int i = 0; i < 12; i++) {
+      assertTrue(journal.append(record(i)));
+    }
+    // Only two segments fit; the oldest went.
+    assertEquals(4, journal.evicted.sum());
+    assertEquals(8, journal.size());
+    assertTrue(! journal.append(new byte[200]));
+    assertEquals(1, journal.refused.sum());
+
+    final List<byte[]> records = new ArrayList<byte[]>();
+    journal.read(records, 100);
+    assertArrayEquals(record(4), records.get(0));
+  }
+}
@@ -0,0 +1,82 @@
+package riemann.java.client.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.riemann.riemann.Proto.Msg;
+import io.riemann.riemann.client.EncodedMsg;
+import io.riemann.riemann.client.MsgEncoder;
+import org.junit.Test;
+
+public class MsgEncoderTest {
+  public static Msg msg() {
+    return Msg.newBuilder()
+      .addEvents(Util.createEvent())
+      .addEvents(Util.createEvent())
+      .build();
+  }
+
+  @Test
+  public void lengthPrefixedTest() throws Exception {
+    final EmbeddedChannel channel = new EmbeddedChannel(new MsgEncoder(true));
+    final Msg m = msg();
+    channel.writeOutbound(m);
+
+    final ByteBuf buf = channel.readOutbound();
+    try {
+      assertEquals(4 + m.getSerializedSize(), buf.readableBytes());
+      assertEquals(m.getSerializedSize(), buf.readInt());
+      assertEquals(m, Msg.parseFrom(ByteBufUtil.getBytes(buf)));
+    } finally {
+      buf.release();
+    }
+    assertNull(channel.readOutbound());
+    channel.finish();
+  }
+
+  @Test
+  public void unframedTest() throws Exception {
+    final EmbeddedChannel channel = new EmbeddedChannel(new MsgEncoder(false));
+    final Msg m = msg();
+    channel.writeOutbound(m);
+
+    final ByteBuf buf = channel.readOutbound();
+    try {
+      assertEquals(m.getSerializedSize(), buf.readableBytes());
+      assertEquals(m, Msg.parseFrom(ByteBufUtil.getBytes(buf)));
+    } finally {
+      buf.release();
+    }
+    channel.finish();
+  }
+
+  @Test
+  public void encodedTest() throws Exception {
+    final Msg m = msg();
+    final byte[][] chunks = new byte[][] {
+      EncodedMsg.encodeEvent(m.getEvents(0)),
+      EncodedMsg.encodeEvent(m.getEvents(1))
+    };
+    final EncodedMsg encoded =
+      new EncodedMsg(chunks, 2, chunks[0].length + chunks[1].length);
+    assertEquals(m.getSerializedSize(), encoded.size);
+    assertEquals(m, encoded.toMsg());
+
+    // Spliced chunks frame exactly like the Msg they stand for.
+    final EmbeddedChannel channel = new EmbeddedChannel(new MsgEncoder(true));
+    channel.writeOutbound(encoded);
+    channel.writeOutbound(m);
+    final ByteBuf spliced = channel.readOutbound();
+    final ByteBuf built = channel.readOutbound();
+    try {
+      assertEquals(built, spliced);
+    } finally {
+      spliced.release();
+      built.release();
+    }
+    channel.finish();
+  }
+}
@@ -1,7 +1,9 @@
 package riemann.java.client.tests;
 
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.*;
 import java.io.*;
 
@@ -15,6 +17,9 @@ public abstract class Server {
 	public Thread thread;
   public ServerSocket serverSocket;
   public LinkedBlockingQueue<Msg> received = new LinkedBlockingQueue<Msg>();
+  // Messages received on each connection, in the order they were accepted.
+  public ConcurrentLinkedQueue<AtomicInteger> connections =
+    new ConcurrentLinkedQueue<AtomicInteger>();
 
 	public InetSocketAddress start() throws IOException {
     this.serverSocket = new ServerSocket(0);
@@ -41,37 +46,57 @@ public abstract class Server {
       @Override
       public void run() {
         try {
-          Socket sock = null;
+          Socket sock;
+          // Accept connections, serving each on its own thread
+          while((sock = serverSocket.accept()) != null) {
+            final Thread t = connectionThread(sock);
+            t.setDaemon(true);
+            t.start();
+          }
+        } catch (SocketException e) {
+          // Socket closed.
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    };
+  }
+
+	public Thread connectionThread(final Socket sock) {
+    final AtomicInteger count = new AtomicInteger();
+    connections.add(count);
+    return new Thread() {
+      @Override
+      public void run() {
+        try {
           DataOutputStream out = null;
           DataInputStream in = null;
 
           try {
-            // Accept connection
-            while((sock = serverSocket.accept()) != null) {
-              // Set up streams
-              out = new DataOutputStream(sock.getOutputStream());
-              in = new DataInputStream(sock.getInputStream());
+            // Set up streams
+            out = new DataOutputStream(sock.getOutputStream());
+            in = new DataInputStream(sock.getInputStream());
+
+            // Over each message
+            while (true) {
+              // Read length
+              final int len = in.readInt();
+
+              // Read message
+              final byte[] data = new byte[len];
+              in.readFully(data);
+              final Msg request = Msg.parseFrom(data);
+
+              // Log request
+              received.put(request);
+              count.incrementAndGet();
 
-              // Over each message
-              while (true) {
-                // Read length
-                final int len = in.readInt();
-                
-                // Read message
-                final byte[] data = new byte[len];
-                in.readFully(data);
-                final Msg request = Msg.parseFrom(data);
-                
-                // Log request
-                received.put(request);
+              // Handle message
+              final Msg response = handle(request);
 
-                // Handle message
-                final Msg response = handle(request);
-                
-                // Write response
-                out.writeInt(response.getSerializedSize());
-                response.writeTo(out);
-              }
+              // Write response
+              out.writeInt(response.getSerializedSize());
+              response.writeTo(out);
             }
           } catch (SocketException e) {
             // Socket closed.
@@ -80,7 +105,7 @@ public abstract class Server {
           } finally {
             if (out  != null) { out.close();  }
             if (in   != null) { in.close();   }
-            if (sock != null) { sock.close(); }
+            sock.close();
           }
         } catch (Exception e) {
           e.printStackTrace();
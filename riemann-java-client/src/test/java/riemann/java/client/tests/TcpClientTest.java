@@ -1,22 +1,43 @@
 
 package riemann.java.client.tests;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.riemann.riemann.Proto.Event;
 import io.riemann.riemann.Proto.Msg;
+import io.riemann.riemann.client.CircuitBreaker;
+import io.riemann.riemann.client.CircuitOpenException;
+import io.riemann.riemann.client.ConnectionHealth;
+import io.riemann.riemann.client.ExceptionReporter;
 import io.riemann.riemann.client.IPromise;
+import io.riemann.riemann.client.IoMode;
 import io.riemann.riemann.client.IRiemannClient;
 import io.riemann.riemann.client.OverloadedException;
+import io.riemann.riemann.client.Promise;
+import io.riemann.riemann.client.ReconnectBackoff;
 import io.riemann.riemann.client.RiemannClient;
+import io.riemann.riemann.client.ResponseTimeoutException;
 import io.riemann.riemann.client.ServerError;
+import io.riemann.riemann.client.SharedEventLoopGroup;
+import io.riemann.riemann.client.TcpHandler;
 import io.riemann.riemann.client.TcpTransport;
+import io.riemann.riemann.client.Write;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 
 public class TcpClientTest {
@@ -63,6 +84,484 @@ public class TcpClientTest {
   }
 
 
+  @Test
+  public void stripedSendTest() throws IOException, InterruptedException, ServerError {
+    // Slow enough that writes stay outstanding while we send.
+    final Server server = new EchoServer(10);
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      transport.setConnections(4, 2);
+      client.connect();
+      assertEquals(4, transport.stripes.length);
+      for (int i = 0; i < transport.stripes.length; i++) {
+        assertTrue(null != TcpTransport.activeChannel(transport.stripes[i]));
+      }
+
+      final List<IPromise<Msg>> responses = new ArrayList<IPromise<Msg>>();
+      for (int i = 0; i < 100; i++) {
+        responses.add(client.sendEvent(Util.createEvent()));
+      }
+      for (IPromise<Msg> response : responses) {
+        final Msg rsp = response.deref(1, TimeUnit.SECONDS);
+        assertTrue(rsp != null && (!rsp.hasOk() || rsp.getOk()));
+      }
+      assertEquals(100, server.received.size());
+
+      // Each write went to whichever connection had the fewest outstanding,
+      // so all four carried some.
+      assertEquals(4, server.connections.size());
+      for (AtomicInteger count : server.connections) {
+        assertTrue(0 < count.get());
+      }
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void outstandingTest() throws Exception {
+    final TcpHandler handler = new TcpHandler(new ExceptionReporter() {
+      @Override
+      public void reportException(final Throwable t) {
+      }
+    });
+    final EmbeddedChannel channel = new EmbeddedChannel(handler);
+    for (int i = 0; i < 3; i++) {
+      handler.outstanding.incrementAndGet();
+      channel.writeAndFlush(new Write(Msg.getDefaultInstance(), new Promise<Msg>()));
+    }
+    assertEquals(3, handler.outstanding.get());
+
+    // Failing the queue settles everything on it...
+    handler.fail(new IOException("test"));
+    assertEquals(0, handler.outstanding.get());
+
+    // ... and a write the closed queue refuses never counts.
+    handler.outstanding.incrementAndGet();
+    channel.writeAndFlush(new Write(Msg.getDefaultInstance(), new Promise<Msg>()));
+    assertEquals(0, handler.outstanding.get());
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void capacityTest() throws IOException, InterruptedException, ServerError {
+    final Server server = new OkServer();
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      assertTrue(!transport.hasCapacity());
+      client.connect();
+      assertTrue(transport.awaitCapacity(1, TimeUnit.SECONDS));
+      assertEquals(true, transport.capacity().deref(1, TimeUnit.SECONDS));
+
+      // A budget smaller than any message still lets one message through at
+      // a time, and capacity comes back once it has been flushed.
+      transport.writeBufferBytes.set(1);
+      for (int i = 0; i < 10; i++) {
+        assertTrue(transport.awaitCapacity(1, TimeUnit.SECONDS));
+        client.sendEvent(Util.createEvent()).deref(1, TimeUnit.SECONDS);
+      }
+      assertTrue(transport.awaitCapacity(1, TimeUnit.SECONDS));
+      assertEquals(0, transport.bytesInFlight.get());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void fireAndForgetTest() throws IOException, InterruptedException, ServerError {
+    final Server server = new OkServer();
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      assertTrue(!client.sendEventAndForget(Util.createEvent()));
+      assertEquals(1, transport.ackStats.rejected.sum());
+
+      client.connect();
+      // Mix in a promised write; its response must still line up.
+      for (int i = 0; i < 50; i++) {
+        assertTrue(client.event().service("forget").metric(i).sendAndForget());
+      }
+      final Msg rsp = client.sendEvent(Util.createEvent()).deref(1, TimeUnit.SECONDS);
+      assertTrue(rsp != null && (!rsp.hasOk() || rsp.getOk()));
+      for (int i = 50; i < 100; i++) {
+        assertTrue(client.sendEventAndForget(Util.createEvent()));
+      }
+
+      final long deadline = System.currentTimeMillis() + 2000;
+      while (transport.ackStats.acked.sum() < 101 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(101, transport.ackStats.acked.sum());
+      assertEquals(0, transport.ackStats.errors.sum());
+      assertEquals(101, server.received.size());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void nativeTransportTest() throws IOException, InterruptedException, ServerError {
+    assertEquals(IoMode.NIO, IoMode.NIO.resolve());
+
+    final Server server = new OkServer();
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      // Whatever this host supports, we should end up connected.
+      transport.ioMode = IoMode.IO_URING;
+      transport.tcpQuickAck.set(true);
+      transport.busyPollMicros.set(10);
+      client.connect();
+      assertEquals(IoMode.IO_URING.resolve(), IoMode.of(transport.eventLoopGroup));
+
+      final Msg rsp = client.sendEvent(Util.createEvent()).deref(1, TimeUnit.SECONDS);
+      assertTrue(rsp != null && (!rsp.hasOk() || rsp.getOk()));
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void closeDuringReconnectTest() throws Exception {
+    final ServerSocket socket = new ServerSocket(0);
+    final int port = socket.getLocalPort();
+    socket.close();
+    final SharedEventLoopGroup shared = new SharedEventLoopGroup(IoMode.NIO, 1);
+    // Keeps the group running after the transport lets go of it.
+    final EventLoopGroup group = shared.retain();
+    final TcpTransport transport = new TcpTransport(port);
+    try {
+      transport.reconnectDelay.set(200);
+      transport.reconnectDelayMax.set(200);
+      transport.setEventLoopGroup(shared);
+      try {
+        transport.connect();
+      } catch (IOException e) {
+        // Nobody's listening.
+      }
+      Thread.sleep(50);
+      final long failures = transport.health.failures;
+      assertTrue(0 < failures);
+
+      // A reconnect scheduled before close() doesn't go ahead.
+      transport.close();
+      Thread.sleep(400);
+      assertTrue(!group.isShuttingDown());
+      assertEquals(failures, transport.health.failures);
+    } finally {
+      transport.close();
+      shared.release();
+    }
+  }
+
+  @Test
+  public void sharedEventLoopGroupTest() throws Exception {
+    final Server server = new OkServer();
+    final SharedEventLoopGroup shared = new SharedEventLoopGroup(IoMode.NIO, 1);
+    RiemannClient a = null;
+    RiemannClient b = null;
+    try {
+      final InetSocketAddress address = server.start();
+      a = RiemannClient.tcp(address);
+      b = RiemannClient.tcp(address);
+      ((TcpTransport) a.transport()).setEventLoopGroup(shared);
+      ((TcpTransport) b.transport()).setEventLoopGroup(shared);
+      a.connect();
+      b.connect();
+      assertEquals(2, shared.refCount());
+      final EventLoopGroup group = ((TcpTransport) a.transport()).eventLoopGroup;
+      assertTrue(group == ((TcpTransport) b.transport()).eventLoopGroup);
+
+      // Closing one client leaves the group running for the other.
+      a.close();
+      assertEquals(1, shared.refCount());
+      assertTrue(!group.isShuttingDown());
+
+      // Sends from the group's own thread are written inline.
+      final RiemannClient client = b;
+      final IPromise<Msg> rsp = group.next().submit(new Callable<IPromise<Msg>>() {
+        @Override
+        public IPromise<Msg> call() {
+          return client.sendEvent(Util.createEvent());
+        }
+      }).get(1, TimeUnit.SECONDS);
+      assertTrue(rsp.deref(1, TimeUnit.SECONDS) != null);
+
+      b.close();
+      assertEquals(0, shared.refCount());
+      assertTrue(group.isShuttingDown());
+    } finally {
+      if (a != null) {
+        a.close();
+      }
+      if (b != null) {
+        b.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void reconnectBackoffTest() {
+    final ReconnectBackoff backoff =
+      new ReconnectBackoff(new AtomicLong(100), new AtomicLong(1000));
+    long max = 0;
+    for (int i = 0; i < 100; i++) {
+      final long delay = backoff.next();
+      assertTrue(100 <= delay && delay <= 1000);
+      max = Math.max(max, delay);
+    }
+    assertTrue(300 < max);
+
+    // Equal bounds give a fixed delay.
+    final ReconnectBackoff fixed =
+      new ReconnectBackoff(new AtomicLong(100), new AtomicLong(100));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(100, fixed.next());
+    }
+  }
+
+  @Test
+  public void healthTest() throws Exception {
+    // Nothing listening here.
+    final ServerSocket unused = new ServerSocket(0);
+    final int deadPort = unused.getLocalPort();
+    unused.close();
+
+    RiemannClient client = RiemannClient.tcp(
+        new InetSocketAddress(InetAddress.getLocalHost(), deadPort));
+    TcpTransport transport = (TcpTransport) client.transport();
+    transport.reconnectDelay.set(10);
+    transport.reconnectDelayMax.set(50);
+    try {
+      client.connect();
+      fail("Should have failed to connect");
+    } catch (IOException e) {
+    }
+    try {
+      // Keeps trying, and keeps failing.
+      Thread.sleep(300);
+      assertEquals(ConnectionHealth.State.DOWN, transport.health.state);
+      assertTrue(1 < transport.health.consecutiveFailures);
+      assertTrue(!transport.health.isUsable());
+    } finally {
+      client.close();
+    }
+    // Closed for good: no more attempts.
+    final long failures = transport.health.failures;
+    Thread.sleep(200);
+    assertTrue(transport.health.failures <= failures + 1);
+
+    final Server server = new OkServer();
+    try {
+      client = RiemannClient.tcp(server.start());
+      transport = (TcpTransport) client.transport();
+      transport.connections.set(2);
+      client.connect();
+      // Channels report in as they go active, just after connecting.
+      for (int i = 0; i < 100 && transport.health.state != ConnectionHealth.State.UP; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(ConnectionHealth.State.UP, transport.health.state);
+      assertEquals(2, transport.health.activeChannels);
+      assertTrue(0 < transport.health.lastUp);
+      client.close();
+      assertEquals(ConnectionHealth.State.DOWN, transport.health.state);
+    } finally {
+      client.close();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void writeTimeoutTest() throws IOException, InterruptedException {
+    final Server server = new EchoServer(1000);
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      transport.writeTimeout.set(200);
+      transport.maxConsecutiveTimeouts.set(0);
+      client.connect();
+
+      final long start = System.currentTimeMillis();
+      try {
+        client.sendEvent(Util.createEvent()).deref(2, TimeUnit.SECONDS);
+        fail("Should have timed out");
+      } catch (ResponseTimeoutException e) {
+        assertTrue(System.currentTimeMillis() - start < 1000);
+      }
+      assertEquals(1, transport.ackStats.timeouts.sum());
+
+      // A per-message timeout of 0 waits out the slow server, and the late
+      // response to the expired write doesn't get delivered in its place.
+      final Msg rsp = transport.sendMessage(
+          Msg.newBuilder().addEvents(Util.createEvent()).build(),
+          0, TimeUnit.MILLISECONDS).deref(3, TimeUnit.SECONDS);
+      assertTrue(rsp != null);
+      assertEquals(1, transport.ackStats.timeouts.sum());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void timeoutTickerTest() throws Exception {
+    final Server server = new OkServer();
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      transport.writeTimeout.set(0);
+      client.connect();
+      final Channel channel = transport.channel();
+      final TcpHandler handler = channel.pipeline().get(TcpHandler.class);
+      final Callable<Boolean> ticking = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return handler.timeoutTicker != null;
+        }
+      };
+
+      // Nothing can time out, so nothing ticks...
+      client.sendEvent(Util.createEvent()).deref(1, TimeUnit.SECONDS);
+      assertTrue(! channel.eventLoop().submit(ticking).get());
+
+      // ... until a write brings its own deadline.
+      transport.sendMessage(Msg.newBuilder().addEvents(Util.createEvent()).build(),
+                            1, TimeUnit.SECONDS).deref(1, TimeUnit.SECONDS);
+      assertTrue(channel.eventLoop().submit(ticking).get());
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void circuitBreakerTest() throws IOException, InterruptedException {
+    final Server server = new EchoServer(100);
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      final CircuitBreaker breaker = transport.breaker;
+      transport.writeTimeout.set(20);
+      transport.maxConsecutiveTimeouts.set(0);
+      breaker.minSamples.set(3);
+      breaker.windowMillis.set(50);
+      breaker.openMillis.set(200);
+      client.connect();
+
+      // Everything times out...
+      for (int i = 0; i < 4; i++) {
+        client.sendEvent(Util.createEvent());
+      }
+      for (int i = 0; i < 100 && transport.ackStats.timeouts.sum() < 4; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(4, transport.ackStats.timeouts.sum());
+      Thread.sleep(60);
+
+      // ... so the next window's first send opens the breaker, and it and
+      // everything after it are refused without being written.
+      final Msg msg = Msg.newBuilder().addEvents(Util.createEvent()).build();
+      assertSame(CircuitBreaker.REJECTED, transport.sendMessage(msg));
+      assertEquals(CircuitBreaker.State.OPEN, breaker.state);
+      assertTrue(! transport.sendMessageAndForget(msg));
+      try {
+        client.sendEvent(Util.createEvent()).deref(1, TimeUnit.SECONDS);
+        fail("Should have been refused");
+      } catch (CircuitOpenException e) {
+        assertSame(CircuitBreaker.OPEN, e);
+      }
+      assertEquals(3, breaker.rejected.sum());
+      assertEquals(1, breaker.opened.sum());
+
+      // Once open long enough, a probe goes through; its answer closes the
+      // breaker.
+      Thread.sleep(250);
+      final Msg rsp = transport.sendMessage(msg, 0, TimeUnit.MILLISECONDS)
+        .deref(3, TimeUnit.SECONDS);
+      assertTrue(rsp != null);
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state);
+      assertTrue(transport.sendMessageAndForget(msg));
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.state);
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+  }
+
+  @Test
+  public void heartbeatTest() throws IOException, InterruptedException {
+    // Idle connections to a live server are probed, and stay up.
+    Server server = new OkServer();
+    RiemannClient client = null;
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      transport.heartbeatInterval.set(50);
+      client.connect();
+      Thread.sleep(300);
+      assertTrue(2 <= transport.ackStats.heartbeats.sum());
+      assertEquals(0, transport.ackStats.heartbeatFailures.sum());
+      assertEquals(ConnectionHealth.State.UP, transport.health.state);
+      assertEquals(-1, transport.health.lastDown);
+    } finally {
+      if (client != null) {
+        client.close();
+      }
+      server.stop();
+    }
+
+    // A server which stops answering has its connection recycled.
+    server = new EchoServer(10000);
+    try {
+      client = RiemannClient.tcp(server.start());
+      final TcpTransport transport = (TcpTransport) client.transport();
+      transport.heartbeatInterval.set(50);
+      transport.heartbeatTimeout.set(100);
+      transport.reconnectDelay.set(10);
+      client.connect();
+      for (int i = 0; i < 200 && transport.ackStats.heartbeatFailures.sum() == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(0 < transport.ackStats.heartbeatFailures.sum());
+      for (int i = 0; i < 100 && transport.health.lastDown < 0; i++) {
+        Thread.sleep(10);
+      }
+      assertTrue(0 < transport.health.lastDown);
+    } finally {
+      client.close();
+      server.stop();
+    }
+  }
+
   @Test
   public void limiterLeakTest() throws IOException {
     final long delay = 0;     // Server time to process a message
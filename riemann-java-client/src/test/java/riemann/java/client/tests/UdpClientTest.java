@@ -0,0 +1,45 @@
+package riemann.java.client.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.channel.EventLoopGroup;
+import io.riemann.riemann.client.ConnectionHealth;
+import io.riemann.riemann.client.IoMode;
+import io.riemann.riemann.client.SharedEventLoopGroup;
+import io.riemann.riemann.client.UdpTransport;
+import java.net.DatagramSocket;
+import org.junit.Test;
+
+public class UdpClientTest {
+  @Test
+  public void closeOnSharedGroupTest() throws Exception {
+    final DatagramSocket serverSocket = new DatagramSocket();
+    final SharedEventLoopGroup shared = new SharedEventLoopGroup(IoMode.NIO, 1);
+    // Keeps the group running after the transport lets go of it.
+    final EventLoopGroup group = shared.retain();
+    final UdpTransport transport = new UdpTransport(serverSocket.getLocalPort());
+    try {
+      transport.reconnectDelay.set(10);
+      transport.setEventLoopGroup(shared);
+      transport.connect();
+      for (int i = 0; i < 100 && ! transport.health.isUsable(); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(ConnectionHealth.State.UP, transport.health.state);
+
+      // The channel's reconnect handler outlives close() on the shared
+      // group, but doesn't bring the closed transport back.
+      transport.close();
+      Thread.sleep(200);
+      assertTrue(!group.isShuttingDown());
+      assertTrue(transport.health.closed);
+      assertEquals(ConnectionHealth.State.DOWN, transport.health.state);
+      assertTrue(transport.channels.isEmpty());
+    } finally {
+      transport.close();
+      shared.release();
+      serverSocket.close();
+    }
+  }
+}